@@ -0,0 +1,141 @@
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CyclicBarrier;
+
+
+/**
+ * Minimal throughput harness in the spirit of JMH, which is not available to the Ant builds:
+ * warmup iterations, then measured iterations of a fixed time, each running the operation in a loop
+ * on the given number of threads. Results are operations per second, mean and standard deviation over the
+ * measured iterations. Operation results are consumed, so the JIT cannot drop the work.
+ * <p>
+ * Configured by system properties: {@code bench.warmup} and {@code bench.iterations} (counts, 3 and 5 by default),
+ * {@code bench.time} (milliseconds per iteration, 1000 by default) and {@code bench.threads}
+ * (comma-separated thread counts, by default 1 and the number of processors).
+ */
+public class BenchmarkRunner {
+    private final int warmupIterations = Integer.getInteger("bench.warmup", 3);
+    private final int measuredIterations = Integer.getInteger("bench.iterations", 5);
+    private final long iterationMillis = Long.getLong("bench.time", 1000L);
+    private final List<Integer> threadCounts = new ArrayList<Integer>();
+
+    private volatile long consumed;
+
+    public interface Operation {
+        long run() throws Exception;
+    }
+
+    /**
+     * Creates the operation of a single thread, with whatever state the thread must not share.
+     */
+    public interface OperationFactory {
+        Operation newOperation() throws Exception;
+    }
+
+    public BenchmarkRunner() {
+        String threads = System.getProperty("bench.threads");
+        if (threads != null) {
+            for (String count : threads.split(",")) {
+                threadCounts.add(Integer.parseInt(count.trim()));
+            }
+        } else {
+            Set<Integer> counts = new LinkedHashSet<Integer>();
+            counts.add(1);
+            counts.add(Runtime.getRuntime().availableProcessors());
+            threadCounts.addAll(counts);
+        }
+    }
+
+    public List<Integer> getThreadCounts() {
+        return threadCounts;
+    }
+
+    public void printHeader() {
+        System.out.printf("%-50s %8s %16s %14s%n", "benchmark", "threads", "ops/s", "stddev");
+    }
+
+    public double run(String name, int threads, OperationFactory factory) throws Exception {
+        double[] results = new double[measuredIterations];
+        List<Worker> workers = new ArrayList<Worker>();
+        CyclicBarrier iterationStart = new CyclicBarrier(threads + 1);
+        CyclicBarrier iterationEnd = new CyclicBarrier(threads + 1);
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(factory.newOperation(), iterationStart, iterationEnd);
+            workers.add(worker);
+            worker.start();
+        }
+
+        for (int iteration = 0; iteration < warmupIterations + measuredIterations; iteration++) {
+            long start = System.nanoTime();
+            iterationStart.await();
+            iterationEnd.await();
+            long elapsed = System.nanoTime() - start;
+
+            long operations = 0;
+            for (Worker worker : workers) {
+                if (worker.failure != null) {
+                    throw new IllegalStateException("Benchmark " + name + " failed", worker.failure);
+                }
+                operations += worker.operations;
+            }
+            if (iteration >= warmupIterations) {
+                results[iteration - warmupIterations] = operations * 1e9 / elapsed;
+            }
+        }
+        for (Worker worker : workers) {
+            worker.join();
+            consumed += worker.sink;
+        }
+
+        double mean = 0;
+        for (double result : results) {
+            mean += result / results.length;
+        }
+        double variance = 0;
+        for (double result : results) {
+            variance += (result - mean) * (result - mean) / results.length;
+        }
+        System.out.printf("%-50s %8d %16.1f %14.1f%n", name, threads, mean, Math.sqrt(variance));
+        return mean;
+    }
+
+    private final class Worker extends Thread {
+        private final Operation operation;
+        private final CyclicBarrier iterationStart;
+        private final CyclicBarrier iterationEnd;
+        private long operations;
+        private long sink;
+        private volatile Exception failure;
+
+        private Worker(Operation operation, CyclicBarrier iterationStart, CyclicBarrier iterationEnd) {
+            this.operation = operation;
+            this.iterationStart = iterationStart;
+            this.iterationEnd = iterationEnd;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                for (int iteration = 0; iteration < warmupIterations + measuredIterations; iteration++) {
+                    iterationStart.await();
+                    long deadline = System.nanoTime() + iterationMillis * 1000000L;
+                    operations = 0;
+                    try {
+                        do {
+                            sink += operation.run();
+                            operations++;
+                        } while (System.nanoTime() - deadline < 0);
+                    } catch (Exception ex) {
+                        failure = ex;
+                    }
+                    iterationEnd.await();
+                }
+            } catch (Exception ex) {
+                failure = ex;
+            }
+        }
+    }
+}
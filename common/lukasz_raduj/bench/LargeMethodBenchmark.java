@@ -0,0 +1,114 @@
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+
+/**
+ * Measures how long {@link InstrumentationEngine} takes on a generated method with thousands of instructions,
+ * and how much garbage it makes, which is where rewriting the instruction list dominates.
+ * <p>
+ * Usage: LargeMethodBenchmark [number of instructions...], by default 1000, 2000 and 4000.
+ * Every aspect is measured alone and all of them together.
+ */
+public class LargeMethodBenchmark {
+    private static final String CLASS_NAME = "Generated";
+    private static final int INSTRUCTIONS_PER_UNIT = 9;
+    private static final int WARMUP_ROUNDS = 5;
+    private static final int MEASURED_ROUNDS = 10;
+    private static final String[] ASPECTS = {
+            InvokeAroundAspect.NAME,
+            GetFieldDescriptionAspect.NAME,
+            InstructionCountAspect.NAME,
+            MethodTimingAspect.NAME,
+            CallEdgeAspect.NAME,
+            AllocationSiteAspect.NAME,
+            MonitorContentionAspect.NAME,
+            InvokeAroundAspect.NAME + "+" + GetFieldDescriptionAspect.NAME + "+"
+                    + InstructionCountAspect.NAME + "+" + MethodTimingAspect.NAME + "+" + CallEdgeAspect.NAME + "+"
+                    + AllocationSiteAspect.NAME + "+" + MonitorContentionAspect.NAME
+    };
+
+    public static void main(String[] args) throws Exception {
+        int[] instructionCounts = {1000, 2000, 4000};
+        if (args.length > 0) {
+            instructionCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                instructionCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.printf("%-80s %12s %14s %14s%n", "aspects", "instructions", "ms per class", "KB per class");
+        for (String aspects : ASPECTS) {
+            for (int instructionsCount : instructionCounts) {
+                byte[] classBytes = generateClass(instructionsCount / INSTRUCTIONS_PER_UNIT);
+                String[] options = {InstrumentationEngine.ASPECTS_OPTION + aspects, InstructionCountAspect.OPCODES_OPTION};
+                for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                    new InstrumentationEngine(options).transform(classBytes);
+                }
+
+                long allocatedBefore = allocatedBytes();
+                long start = System.nanoTime();
+                for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                    new InstrumentationEngine(options).transform(classBytes);
+                }
+                double millis = (System.nanoTime() - start) / 1e6 / MEASURED_ROUNDS;
+                long allocated = (allocatedBytes() - allocatedBefore) / MEASURED_ROUNDS;
+                System.out.printf("%-80s %12d %14.2f %14s%n", aspects, instructionsCount, millis,
+                        allocated < 0 ? "n/a" : String.valueOf(allocated / 1024));
+            }
+        }
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far, or a negative number when the JVM does not tell
+     */
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Single method made of units reading a field, jumping over an invocation when it is not positive,
+     * and accumulating the invocation results, so every aspect finds something to instrument in every unit.
+     */
+    private static byte[] generateClass(int unitsCount) {
+        ClassGen classGen = new ClassGen(CLASS_NAME, "java.lang.Object", CLASS_NAME + ".java",
+                Constants.ACC_PUBLIC | Constants.ACC_SUPER, null);
+        ConstantPoolGen constantPoolGen = classGen.getConstantPool();
+        classGen.addEmptyConstructor(Constants.ACC_PUBLIC);
+        classGen.addField(new FieldGen(Constants.ACC_PRIVATE, Type.INT, "value", constantPoolGen).getField());
+        int valueField = constantPoolGen.addFieldref(CLASS_NAME, "value", "I");
+        int absMethod = constantPoolGen.addMethodref("java.lang.Math", "abs", "(I)I");
+
+        InstructionList instructions = new InstructionList();
+        instructions.append(InstructionConstants.ICONST_0);
+        instructions.append(new ISTORE(1));
+        for (int i = 0; i < unitsCount; i++) {
+            instructions.append(InstructionConstants.ALOAD_0);
+            instructions.append(new GETFIELD(valueField));
+            IFLE skip = new IFLE(null);
+            instructions.append(skip);
+            instructions.append(new ILOAD(1));
+            instructions.append(new INVOKESTATIC(absMethod));
+            instructions.append(new ILOAD(1));
+            instructions.append(InstructionConstants.IADD);
+            instructions.append(new ISTORE(1));
+            skip.setTarget(instructions.append(InstructionConstants.NOP));
+        }
+        instructions.append(new ILOAD(1));
+        instructions.append(InstructionConstants.IRETURN);
+
+        MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC, Type.INT, Type.NO_ARGS, new String[0],
+                "compute", CLASS_NAME, instructions, constantPoolGen);
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        classGen.addMethod(methodGen.getMethod());
+        instructions.dispose();
+        return classGen.getJavaClass().getBytes();
+    }
+}
@@ -0,0 +1,147 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * Measures how many classes per second a transformer instruments, over a corpus of real class files:
+ * every class file found in the given directories and jars. One operation transforms one class of the corpus,
+ * every thread uses its own transformer instance.
+ * <p>
+ * Usage: TransformThroughputBenchmark &lt;directory or .jar&gt;... [-- option set...], where an option set is
+ * a comma-separated list of transformer options, "-" stands for no options. The transformer is
+ * {@value BytecodeTransformers#DEFAULT_TRANSFORMER} unless the {@code bench.transformer} property names another one.
+ */
+public class TransformThroughputBenchmark {
+    private static final String NO_OPTIONS = "-";
+
+    public static void main(String[] args) throws Exception {
+        List<String> locations = new ArrayList<String>();
+        List<String> optionSets = new ArrayList<String>();
+        List<String> current = locations;
+        for (String arg : args) {
+            if (arg.equals("--")) {
+                current = optionSets;
+            } else {
+                current.add(arg);
+            }
+        }
+        if (locations.isEmpty()) {
+            System.out.println("Usage: TransformThroughputBenchmark <directory or .jar>... [-- option set...]");
+            System.exit(1);
+        }
+        if (optionSets.isEmpty()) {
+            optionSets.add(NO_OPTIONS);
+        }
+
+        String transformer = System.getProperty("bench.transformer", BytecodeTransformers.DEFAULT_TRANSFORMER);
+        BenchmarkRunner runner = new BenchmarkRunner();
+        runner.printHeader();
+        for (String optionSet : optionSets) {
+            String[] options = optionSet.equals(NO_OPTIONS) ? new String[0] : optionSet.split(",");
+            final ThreadLocal<BytecodeTransformer> transformers = BytecodeTransformers.perThread(transformer, options);
+            final List<byte[]> corpus = transformableClasses(readCorpus(locations), transformers.get());
+
+            for (int threads : runner.getThreadCounts()) {
+                runner.run(String.format("%s [%s] %d classes", transformer, optionSet, corpus.size()), threads,
+                        new BenchmarkRunner.OperationFactory() {
+                            @Override
+                            public BenchmarkRunner.Operation newOperation() {
+                                return new TransformOperation(transformers, corpus);
+                            }
+                        });
+            }
+        }
+    }
+
+    //some classes of the corpus may be out of reach of BCEL, e.g. with invokedynamic, they would only measure failures
+    private static List<byte[]> transformableClasses(List<byte[]> corpus, BytecodeTransformer transformer) {
+        List<byte[]> transformable = new ArrayList<byte[]>();
+        for (byte[] classBytes : corpus) {
+            try {
+                transformer.transform(classBytes);
+                transformable.add(classBytes);
+            } catch (Exception ex) {
+                System.out.printf("Skipping a class of the corpus. Reason: %s%n", ex);
+            }
+        }
+        return transformable;
+    }
+
+    private static List<byte[]> readCorpus(List<String> locations) throws IOException {
+        List<byte[]> corpus = new ArrayList<byte[]>();
+        for (String location : locations) {
+            File file = new File(location);
+            if (file.isDirectory()) {
+                readDirectory(file, corpus);
+            } else {
+                readJar(file, corpus);
+            }
+        }
+        return corpus;
+    }
+
+    private static void readDirectory(File directory, List<byte[]> corpus) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                readDirectory(file, corpus);
+            } else if (file.getName().endsWith(".class")) {
+                InputStream input = new FileInputStream(file);
+                try {
+                    corpus.add(Streams.readFully(input));
+                } finally {
+                    input.close();
+                }
+            }
+        }
+    }
+
+    private static void readJar(File jar, List<byte[]> corpus) throws IOException {
+        ZipFile zipFile = new ZipFile(jar);
+        try {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".class")) {
+                    InputStream input = zipFile.getInputStream(entry);
+                    try {
+                        corpus.add(Streams.readFully(input));
+                    } finally {
+                        input.close();
+                    }
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    //operations are created by the main thread, the transformer is picked up by the worker thread which runs them
+    private static final class TransformOperation implements BenchmarkRunner.Operation {
+        private final ThreadLocal<BytecodeTransformer> transformers;
+        private final List<byte[]> corpus;
+        private int next;
+
+        private TransformOperation(ThreadLocal<BytecodeTransformer> transformers, List<byte[]> corpus) {
+            this.transformers = transformers;
+            this.corpus = corpus;
+        }
+
+        @Override
+        public long run() throws Exception {
+            byte[] classBytes = corpus.get(next);
+            next = (next + 1) % corpus.size();
+            return transformers.get().transform(classBytes).length;
+        }
+    }
+}
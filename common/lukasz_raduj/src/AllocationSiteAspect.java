@@ -0,0 +1,147 @@
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Counts objects and bytes allocated by every {@code new}, {@code newarray}, {@code anewarray} and
+ * {@code multianewarray} into {@link AllocationSites}, which reports the sites allocating most. A site is
+ * the allocating method and the offset of the allocation, its type is known from the instruction.
+ * <p>
+ * Array probes take copies of the lengths from the stack, element sizes are worked out here. Lengths of
+ * a {@code multianewarray} are stored to locals and loaded back, with an int array of them passed to the probe.
+ */
+public class AllocationSiteAspect implements InstrumentationAspect {
+    public static final String NAME = "allocation-sites";
+
+    private static final String SITES_CLASS = "AllocationSites";
+    private static final String BASE_FIELD_NAME = "allocationSiteBase$";
+    private static final int REFERENCE_BYTES = 4;
+
+    private ClassGen classGen;
+    private ConstantPoolGen constantPoolGen;
+    private ClassSiteRegistration sites;
+    private String allocatingMethod;
+    private MethodGen methodGen;
+    //locals keeping lengths of multidimensional arrays, shared by all sites of the method
+    private List<Integer> lengthSlots;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void startClass(InstrumentedClass instrumentedClass) {
+        classGen = instrumentedClass.getClassGen();
+        constantPoolGen = instrumentedClass.getConstantPool();
+        sites = new ClassSiteRegistration(classGen, SITES_CLASS, BASE_FIELD_NAME);
+    }
+
+    @Override
+    public boolean startMethod(Method method, MethodRewriter rewriter) {
+        allocatingMethod = classGen.getClassName() + "." + method.getName() + method.getSignature();
+        methodGen = rewriter.getMethodGen();
+        lengthSlots = new ArrayList<Integer>();
+        return true;
+    }
+
+    @Override
+    public void visitInstruction(MethodRewriter rewriter, InstructionHandle instructionHandle) {
+        Instruction instruction = instructionHandle.getInstruction();
+
+        InstructionList probe = new InstructionList();
+        Type allocatedType;
+        if (instruction instanceof NEW) {
+            allocatedType = ((NEW) instruction).getLoadClassType(constantPoolGen);
+            probe.append(sites.pushSiteId(sites.size()));
+            probe.append(new INVOKESTATIC(constantPoolGen.addMethodref(SITES_CLASS, "recordObject", "(I)V")));
+        } else if (instruction instanceof NEWARRAY) {
+            allocatedType = ((NEWARRAY) instruction).getType();
+            appendArrayProbe(probe, ((ArrayType) allocatedType).getElementType());
+        } else if (instruction instanceof ANEWARRAY) {
+            allocatedType = new ArrayType(((ANEWARRAY) instruction).getType(constantPoolGen), 1);
+            appendArrayProbe(probe, ((ArrayType) allocatedType).getElementType());
+        } else if (instruction instanceof MULTIANEWARRAY) {
+            MULTIANEWARRAY multiArrayInstruction = (MULTIANEWARRAY) instruction;
+            allocatedType = multiArrayInstruction.getType(constantPoolGen);
+            appendMultiArrayProbe(probe, (ArrayType) allocatedType, multiArrayInstruction.getDimensions());
+        } else {
+            return;
+        }
+
+        sites.addSite(allocatingMethod + "\t" + instructionHandle.getPosition() + "\t" + allocatedType);
+        //allocations are often the first instruction of a loop body, jumps there have to pass the probe
+        rewriter.insertBefore(instructionHandle, probe, true);
+    }
+
+    @Override
+    public void finishMethod(MethodRewriter rewriter) {
+    }
+
+    @Override
+    public void finishClass() {
+        sites.injectClassRegistration();
+    }
+
+    /**
+     * The length is on top of the stack, the probe records a copy of it.
+     */
+    private void appendArrayProbe(InstructionList probe, Type elementType) {
+        probe.append(InstructionConstants.DUP);
+        probe.append(new PUSH(constantPoolGen, elementBytes(elementType)));
+        probe.append(sites.pushSiteId(sites.size()));
+        probe.append(new INVOKESTATIC(constantPoolGen.addMethodref(SITES_CLASS, "recordArray", "(III)V")));
+    }
+
+    /**
+     * Lengths of the allocated levels are on the stack, the last level on top. Elements of the last allocated
+     * level are the elements of the array type only when all its dimensions are allocated.
+     */
+    private void appendMultiArrayProbe(InstructionList probe, ArrayType arrayType, int dimensions) {
+        for (int level = dimensions - 1; level >= 0; level--) {
+            probe.append(new ISTORE(lengthSlot(level)));
+        }
+        probe.append(new PUSH(constantPoolGen, dimensions));
+        probe.append(new NEWARRAY(Type.INT));
+        for (int level = 0; level < dimensions; level++) {
+            probe.append(InstructionConstants.DUP);
+            probe.append(new PUSH(constantPoolGen, level));
+            probe.append(new ILOAD(lengthSlot(level)));
+            probe.append(InstructionConstants.IASTORE);
+        }
+        int lastElementBytes = dimensions == arrayType.getDimensions()
+                ? elementBytes(arrayType.getBasicType()) : REFERENCE_BYTES;
+        probe.append(new PUSH(constantPoolGen, lastElementBytes));
+        probe.append(sites.pushSiteId(sites.size()));
+        probe.append(new INVOKESTATIC(constantPoolGen.addMethodref(SITES_CLASS, "recordArrays", "([III)V")));
+        for (int level = 0; level < dimensions; level++) {
+            probe.append(new ILOAD(lengthSlot(level)));
+        }
+    }
+
+    /**
+     * Probes run one at a time, so a slot per level serves every site.
+     */
+    private int lengthSlot(int level) {
+        while (lengthSlots.size() <= level) {
+            lengthSlots.add(ProbeInstructions.allocateLocal(methodGen, Type.INT));
+        }
+        return lengthSlots.get(level);
+    }
+
+    private static int elementBytes(Type elementType) {
+        if (elementType == Type.LONG || elementType == Type.DOUBLE) {
+            return 8;
+        } else if (elementType == Type.INT || elementType == Type.FLOAT) {
+            return 4;
+        } else if (elementType == Type.SHORT || elementType == Type.CHAR) {
+            return 2;
+        } else if (elementType == Type.BYTE || elementType == Type.BOOLEAN) {
+            return 1;
+        }
+        return REFERENCE_BYTES;
+    }
+}
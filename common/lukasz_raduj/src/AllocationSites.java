@@ -0,0 +1,237 @@
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Runtime of the allocation probes inserted by {@link AllocationSiteAspect}. Every thread counts objects and bytes
+ * of its allocations in its own table of longs, two per site, so recording neither allocates nor locks once the table
+ * has grown to the sites the thread runs. Tables are merged when the sites allocating most bytes are printed at exit,
+ * at most {@value #TOP_SITES_PROPERTY} of them, 20 by default.
+ * <p>
+ * Bytes are estimated for a 64-bit JVM with compressed references: 12 bytes of object header, 16 of array header,
+ * 4 bytes per reference and sizes rounded up to 8. Arrays are counted with their actual lengths, objects with the size
+ * of their class, resolved only when reporting. Objects of classes which cannot be resolved then are counted
+ * as bare headers.
+ */
+public class AllocationSites {
+    public static final String TOP_SITES_PROPERTY = "allocations.top";
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int DEFAULT_TOP_SITES = 20;
+    private static final int OBJECT_HEADER_BYTES = 12;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int ALIGNMENT = 8;
+
+    //allocating method, offset and allocated type of every site
+    private static final SiteDescriptions sites = new SiteDescriptions();
+    private static final int METHOD = 0;
+    private static final int OFFSET = 1;
+    private static final int TYPE = 2;
+
+    private static final CopyOnWriteArrayList<ThreadCounters> allCounters = new CopyOnWriteArrayList<ThreadCounters>();
+    private static final ThreadLocal<ThreadCounters> threadCounters = new ThreadLocal<ThreadCounters>() {
+        @Override
+        protected ThreadCounters initialValue() {
+            ThreadCounters counters = new ThreadCounters();
+            allCounters.add(counters);
+            return counters;
+        }
+    };
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                printTopSites(System.out, Integer.getInteger(TOP_SITES_PROPERTY, DEFAULT_TOP_SITES));
+            }
+        });
+    }
+
+    private AllocationSites() {
+    }
+
+    /**
+     * Reserves ids for the allocation sites of a class, called from its static initializer.
+     *
+     * @return id of the first site of the class
+     */
+    public static int reserveSites(int count) {
+        return sites.reserve(count);
+    }
+
+    /**
+     * @param descriptions allocating method, offset and allocated type of consecutive sites, separated by tabs
+     * and new lines
+     */
+    public static void describeSites(int firstSite, String descriptions) {
+        sites.describe(firstSite, descriptions);
+    }
+
+    /**
+     * Records an object about to be allocated, its size is added when reporting.
+     */
+    public static void recordObject(int site) {
+        threadCounters.get().tableFor(site)[2 * site]++;
+    }
+
+    /**
+     * Records an array about to be allocated, unless its length makes the allocation fail.
+     */
+    public static void recordArray(int length, int elementBytes, int site) {
+        if (length < 0) {
+            return;
+        }
+        long[] counts = threadCounters.get().tableFor(site);
+        counts[2 * site]++;
+        counts[2 * site + 1] += arrayBytes(length, elementBytes);
+    }
+
+    /**
+     * Records arrays of all levels a multidimensional allocation creates. Elements of all but the last level
+     * are references, the last level holds elements of the given size.
+     *
+     * @param lengths lengths of the allocated levels, the allocation may give fewer than the array type has
+     */
+    public static void recordArrays(int[] lengths, int elementBytes, int site) {
+        for (int length : lengths) {
+            if (length < 0) {
+                return;
+            }
+        }
+
+        long arrays = 1;
+        long objects = 0;
+        long bytes = 0;
+        for (int level = 0; level < lengths.length && arrays > 0; level++) {
+            objects += arrays;
+            bytes += arrays * arrayBytes(lengths[level], level == lengths.length - 1 ? elementBytes : REFERENCE_BYTES);
+            arrays *= lengths[level];
+        }
+        long[] counts = threadCounters.get().tableFor(site);
+        counts[2 * site] += objects;
+        counts[2 * site + 1] += bytes;
+    }
+
+    /**
+     * Prints sites allocating most bytes, with their objects. Counts of running threads are read without
+     * stopping them, so the latest allocations may be missing.
+     */
+    public static synchronized void printTopSites(PrintStream output, int limit) {
+        int siteCount = sites.size();
+        long[] merged = new long[2 * siteCount];
+        for (ThreadCounters counters : allCounters) {
+            long[] counts = counters.counts;
+            for (int i = 0; i < Math.min(counts.length, merged.length); i++) {
+                merged[i] += counts[i];
+            }
+        }
+
+        final long[] siteBytes = new long[siteCount];
+        List<Integer> allocatingSites = new ArrayList<Integer>();
+        long totalObjects = 0;
+        long totalBytes = 0;
+        for (int site = 0; site < siteBytes.length; site++) {
+            long objects = merged[2 * site];
+            if (objects == 0) {
+                continue;
+            }
+            siteBytes[site] = merged[2 * site + 1] + objects * objectBytes(sites.get(site, TYPE));
+            allocatingSites.add(site);
+            totalObjects += objects;
+            totalBytes += siteBytes[site];
+        }
+        if (allocatingSites.isEmpty()) {
+            return;
+        }
+        Collections.sort(allocatingSites, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                long firstBytes = siteBytes[first];
+                long secondBytes = siteBytes[second];
+                return firstBytes > secondBytes ? -1 : (firstBytes == secondBytes ? 0 : 1);
+            }
+        });
+
+        output.printf("%-70s %-30s %12s %14s%n", "allocation site", "type", "objects", "bytes");
+        for (Integer site : allocatingSites.subList(0, Math.min(limit, allocatingSites.size()))) {
+            output.printf("%-70s %-30s %12d %14d%n", sites.get(site, METHOD) + "@" + sites.get(site, OFFSET),
+                    sites.get(site, TYPE), merged[2 * site], siteBytes[site]);
+        }
+        output.printf("%-70s %-30s %12d %14d%n", "all " + allocatingSites.size() + " sites", "", totalObjects,
+                totalBytes);
+        output.flush();
+    }
+
+    private static long arrayBytes(int length, int elementBytes) {
+        return align(ARRAY_HEADER_BYTES + (long) length * elementBytes);
+    }
+
+    /**
+     * Size of an instance of the class, zero for arrays, whose bytes are recorded with them.
+     */
+    private static long objectBytes(String type) {
+        if (type.endsWith("[]")) {
+            return 0;
+        }
+
+        long bytes = OBJECT_HEADER_BYTES;
+        try {
+            Class<?> loadedClass = Class.forName(type, false, Thread.currentThread().getContextClassLoader());
+            for (Class<?> c = loadedClass; c != null; c = c.getSuperclass()) {
+                for (Field field : c.getDeclaredFields()) {
+                    if (!Modifier.isStatic(field.getModifiers())) {
+                        bytes += fieldBytes(field.getType());
+                    }
+                }
+            }
+        } catch (ClassNotFoundException ex) {
+            //counted as a bare header
+        } catch (LinkageError ex) {
+            //counted as a bare header
+        }
+        return align(bytes);
+    }
+
+    private static int fieldBytes(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        } else if (type == int.class || type == float.class) {
+            return 4;
+        } else if (type == short.class || type == char.class) {
+            return 2;
+        } else if (type == byte.class || type == boolean.class) {
+            return 1;
+        }
+        return REFERENCE_BYTES;
+    }
+
+    private static long align(long bytes) {
+        return (bytes + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    /**
+     * Objects and bytes of a thread, at even and odd indexes. Only the owner writes, so no locking is needed;
+     * readers may see slightly stale values, which is fine for reporting.
+     */
+    private static final class ThreadCounters {
+        private volatile long[] counts = new long[2 * INITIAL_CAPACITY];
+
+        long[] tableFor(int site) {
+            long[] current = counts;
+            if (2 * site + 1 < current.length) {
+                return current;
+            }
+            current = Arrays.copyOf(current, Math.max(2 * site + 2, current.length * 2));
+            counts = current;
+            return current;
+        }
+    }
+}
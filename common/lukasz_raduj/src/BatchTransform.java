@@ -0,0 +1,245 @@
+import java.io.*;
+import java.util.Arrays;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+
+/**
+ * Instruments every class of a directory or a jar and writes the result as a new jar.
+ * Classes are streamed from the input and transformed in parallel, every worker thread
+ * parses and generates classes on its own, nothing goes through BCEL's global Repository.
+ */
+public class BatchTransform {
+    private static final String CLASS_SUFFIX = ".class";
+    private static final String CACHE_OPTION = "-cache";
+    private static final int TASKS_IN_FLIGHT_PER_THREAD = 4;
+
+    private final ThreadLocal<BytecodeTransformer> transformers;
+    private final int threads;
+    private final TransformCache cache;
+    private final AtomicInteger failedClasses = new AtomicInteger();
+    private final AtomicInteger cachedClasses = new AtomicInteger();
+
+    private ExecutorService executor;
+    private CompletionService<ClassEntry> completionService;
+    private JarOutputStream output;
+    private int pendingClasses;
+    private int transformedClasses;
+
+    public static void main(String[] args) {
+        try {
+            int firstArgument = 0;
+            File cacheDirectory = null;
+            if (args.length > 1 && CACHE_OPTION.equals(args[0])) {
+                cacheDirectory = new File(args[1]);
+                firstArgument = 2;
+            }
+
+            if (args.length - firstArgument < 2) {
+                printUsage();
+                System.exit(1);
+            }
+
+            File input = new File(args[firstArgument]);
+            File output = new File(args[firstArgument + 1]);
+            if (!input.exists() || !output.getName().endsWith(".jar")) {
+                printUsage();
+                System.exit(1);
+            }
+
+            String[] transformerOptions = Arrays.copyOfRange(args, firstArgument + 2, args.length);
+            ThreadLocal<BytecodeTransformer> transformers =
+                    BytecodeTransformers.perThread(BytecodeTransformers.DEFAULT_TRANSFORMER, transformerOptions);
+            TransformCache cache = null;
+            if (cacheDirectory != null) {
+                cache = new TransformCache(cacheDirectory, TransformCache.fingerprint(transformers.get(), transformerOptions));
+            }
+
+            int threads = Runtime.getRuntime().availableProcessors();
+            new BatchTransform(transformers, threads, cache).transform(input, output);
+        } catch (Exception ex) {
+            System.out.printf("Cannot transform classes! Reason: %s%n", ex);
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: BatchTransform [" + CACHE_OPTION + " <directory>] <input directory or .jar> <output .jar> [transformer options]");
+        System.out.println("    " + CACHE_OPTION + "    reuse classes transformed by previous runs, keyed by their content");
+    }
+
+    public BatchTransform(ThreadLocal<BytecodeTransformer> transformers, int threads, TransformCache cache) {
+        this.transformers = transformers;
+        this.threads = threads;
+        this.cache = cache;
+    }
+
+    public void transform(File input, File outputJar) throws IOException, InterruptedException, ExecutionException {
+        long startTime = System.nanoTime();
+        executor = Executors.newFixedThreadPool(threads);
+        completionService = new ExecutorCompletionService<ClassEntry>(executor);
+        try {
+            if (input.isDirectory()) {
+                output = new JarOutputStream(new BufferedOutputStream(new FileOutputStream(outputJar)));
+                transformDirectory(input, "");
+            } else {
+                transformJar(input, outputJar);
+            }
+            while (pendingClasses > 0) {
+                writeNextTransformedClass();
+            }
+        } finally {
+            executor.shutdownNow();
+            if (output != null) {
+                output.close();
+            }
+        }
+
+        long elapsedMillis = Math.max(1L, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+        System.out.printf("Transformed %d classes (%d from cache, %d failed) in %d ms using %d threads, %.1f classes/s%n",
+                transformedClasses, cachedClasses.get(), failedClasses.get(), elapsedMillis, threads,
+                transformedClasses * 1000.0 / elapsedMillis);
+    }
+
+    private void transformDirectory(File directory, String entryPrefix)
+            throws IOException, InterruptedException, ExecutionException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list directory " + directory);
+        }
+
+        for (File file : files) {
+            String entryName = entryPrefix + file.getName();
+            if (file.isDirectory()) {
+                transformDirectory(file, entryName + "/");
+            } else {
+                InputStream fileInput = new BufferedInputStream(new FileInputStream(file));
+                try {
+                    processEntry(entryName, Streams.readFully(fileInput));
+                } finally {
+                    fileInput.close();
+                }
+            }
+        }
+    }
+
+    private void transformJar(File inputJar, File outputJar)
+            throws IOException, InterruptedException, ExecutionException {
+        JarInputStream jarInput = new JarInputStream(new BufferedInputStream(new FileInputStream(inputJar)));
+        try {
+            Manifest manifest = jarInput.getManifest();
+            OutputStream fileOutput = new BufferedOutputStream(new FileOutputStream(outputJar));
+            output = manifest != null ? new JarOutputStream(fileOutput, manifest) : new JarOutputStream(fileOutput);
+
+            JarEntry entry;
+            while ((entry = jarInput.getNextJarEntry()) != null) {
+                if (!entry.isDirectory()) {
+                    processEntry(entry.getName(), Streams.readFully(jarInput));
+                }
+            }
+        } finally {
+            jarInput.close();
+        }
+    }
+
+    private void processEntry(String name, byte[] bytes) throws IOException, InterruptedException, ExecutionException {
+        if (!name.endsWith(CLASS_SUFFIX)) {
+            writeEntry(new ClassEntry(name, bytes));
+            return;
+        }
+
+        //bounds memory used by classes read ahead of the workers
+        if (pendingClasses >= threads * TASKS_IN_FLIGHT_PER_THREAD) {
+            writeNextTransformedClass();
+        }
+        completionService.submit(new TransformTask(new ClassEntry(name, bytes)));
+        pendingClasses++;
+    }
+
+    private void writeNextTransformedClass() throws InterruptedException, ExecutionException, IOException {
+        ClassEntry transformed = completionService.take().get();
+        pendingClasses--;
+        transformedClasses++;
+        writeEntry(transformed);
+    }
+
+    private void writeEntry(ClassEntry entry) throws IOException {
+        output.putNextEntry(new JarEntry(entry.name));
+        output.write(entry.bytes);
+        output.closeEntry();
+
+        //site table goes next to its class
+        if (entry.siteTable != null) {
+            String className = entry.name.substring(0, entry.name.length() - CLASS_SUFFIX.length());
+            output.putNextEntry(new JarEntry(className + SiteIdTable.FILE_SUFFIX));
+            output.write(entry.siteTable);
+            output.closeEntry();
+        }
+    }
+
+    private static class ClassEntry {
+        private final String name;
+        private final byte[] bytes;
+        private final byte[] siteTable;
+
+        private ClassEntry(String name, byte[] bytes) {
+            this(name, bytes, null);
+        }
+
+        private ClassEntry(String name, byte[] bytes, byte[] siteTable) {
+            this.name = name;
+            this.bytes = bytes;
+            this.siteTable = siteTable;
+        }
+    }
+
+    private static byte[] siteTableOf(BytecodeTransformer transformer) throws IOException {
+        if (!(transformer instanceof SiteTableProducer)) {
+            return null;
+        }
+
+        SiteIdTable siteTable = ((SiteTableProducer) transformer).getSiteTable();
+        return siteTable != null && !siteTable.isEmpty() ? siteTable.toBytes() : null;
+    }
+
+    private class TransformTask implements Callable<ClassEntry> {
+        private final ClassEntry entry;
+
+        private TransformTask(ClassEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public ClassEntry call() {
+            try {
+                if (cache != null) {
+                    byte[] cachedBytes = cache.get(entry.bytes);
+                    if (cachedBytes != null) {
+                        cachedClasses.incrementAndGet();
+                        return new ClassEntry(entry.name, cachedBytes, cache.getSiteTable(entry.bytes));
+                    }
+                }
+
+                BytecodeTransformer transformer = transformers.get();
+                byte[] transformedBytes = transformer.transform(entry.bytes);
+                byte[] siteTable = siteTableOf(transformer);
+                if (cache != null) {
+                    //site table goes first, a class found in the cache always has its table there
+                    if (siteTable != null) {
+                        cache.putSiteTable(entry.bytes, siteTable);
+                    }
+                    cache.put(entry.bytes, transformedBytes);
+                }
+                return new ClassEntry(entry.name, transformedBytes, siteTable);
+            } catch (Exception ex) {
+                //class is copied untouched, so the output jar stays complete
+                failedClasses.incrementAndGet();
+                System.out.printf("Cannot transform class %s! Reason: %s%n", entry.name, ex);
+                return entry;
+            }
+        }
+    }
+}
@@ -0,0 +1,16 @@
+import java.io.IOException;
+
+
+/**
+ * Instruments a single class given as raw class file bytes.
+ * Implementations keep per-class state in fields, so one instance must not be shared between threads.
+ */
+public interface BytecodeTransformer {
+
+    byte[] transform(byte[] classBytes) throws IOException;
+
+    /**
+     * Name of the aspect added by this transformer. Classes already carrying this aspect are left untouched.
+     */
+    String getAspectName();
+}
@@ -0,0 +1,44 @@
+import java.lang.reflect.Constructor;
+
+
+public class BytecodeTransformers {
+    public static final String DEFAULT_TRANSFORMER = "Transform";
+
+    private BytecodeTransformers() {
+    }
+
+    /**
+     * Transformers are stateful, so every thread gets its own instance. The transformer is created with
+     * a {@code String[]} constructor taking its command line options, or with a no-arg one when it has no options.
+     */
+    public static ThreadLocal<BytecodeTransformer> perThread(String className, final String[] options)
+            throws ClassNotFoundException, NoSuchMethodException {
+        Class<? extends BytecodeTransformer> transformerClass =
+                Class.forName(className).asSubclass(BytecodeTransformer.class);
+
+        Constructor<? extends BytecodeTransformer> withOptions = null;
+        try {
+            withOptions = transformerClass.getConstructor(String[].class);
+        } catch (NoSuchMethodException ex) {
+            if (options.length > 0) {
+                throw ex;
+            }
+        }
+        final Constructor<? extends BytecodeTransformer> constructor =
+                withOptions != null ? withOptions : transformerClass.getConstructor();
+
+        return new ThreadLocal<BytecodeTransformer>() {
+            @Override
+            protected BytecodeTransformer initialValue() {
+                try {
+                    if (constructor.getParameterTypes().length == 0) {
+                        return constructor.newInstance();
+                    }
+                    return constructor.newInstance((Object) options);
+                } catch (Exception ex) {
+                    throw new IllegalStateException("Cannot create transformer " + constructor.getName(), ex);
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,104 @@
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+import java.util.HashMap;
+import java.util.Map;
+
+
+/**
+ * Counts every call edge, from the calling method and offset of the invocation to the invoked method, into
+ * {@link CallEdges}. Void methods are counted like any other. Virtual and interface calls are counted by
+ * the runtime class of their receiver, so the probe takes the receiver from under the arguments: they are stored
+ * to locals, the receiver is passed to the probe and the arguments are loaded back.
+ */
+public class CallEdgeAspect implements InstrumentationAspect {
+    public static final String NAME = "call-edges";
+
+    private static final String EDGES_CLASS = "CallEdges";
+    private static final String BASE_FIELD_NAME = "callEdgeBase$";
+
+    private ClassGen classGen;
+    private ConstantPoolGen constantPoolGen;
+    private ClassSiteRegistration sites;
+    private String caller;
+    private MethodGen methodGen;
+    //locals keeping arguments while the receiver is recorded, shared by all sites of the method
+    private Map<String, Integer> argumentSlots;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void startClass(InstrumentedClass instrumentedClass) {
+        classGen = instrumentedClass.getClassGen();
+        constantPoolGen = instrumentedClass.getConstantPool();
+        sites = new ClassSiteRegistration(classGen, EDGES_CLASS, BASE_FIELD_NAME);
+    }
+
+    @Override
+    public boolean startMethod(Method method, MethodRewriter rewriter) {
+        caller = classGen.getClassName() + "." + method.getName() + method.getSignature();
+        methodGen = rewriter.getMethodGen();
+        argumentSlots = new HashMap<String, Integer>();
+        return true;
+    }
+
+    @Override
+    public void visitInstruction(MethodRewriter rewriter, InstructionHandle instructionHandle) {
+        Instruction instruction = instructionHandle.getInstruction();
+        if (!(instruction instanceof InvokeInstruction)) {
+            return;
+        }
+        InvokeInstruction invokeInstruction = (InvokeInstruction) instruction;
+
+        int site = sites.addSite(caller + "\t" + instructionHandle.getPosition() + "\t"
+                + invokeInstruction.getReferenceType(constantPoolGen) + "." + invokeInstruction.getMethodName(constantPoolGen)
+                + invokeInstruction.getSignature(constantPoolGen));
+
+        InstructionList probe = new InstructionList();
+        if (instruction instanceof INVOKEVIRTUAL || instruction instanceof INVOKEINTERFACE) {
+            Type[] argumentTypes = invokeInstruction.getArgumentTypes(constantPoolGen);
+            int[] slots = new int[argumentTypes.length];
+            for (int i = argumentTypes.length - 1; i >= 0; i--) {
+                slots[i] = argumentSlot(i, argumentTypes[i]);
+                probe.append(InstructionFactory.createStore(argumentTypes[i], slots[i]));
+            }
+            probe.append(InstructionConstants.DUP);
+            probe.append(sites.pushSiteId(site));
+            probe.append(new INVOKESTATIC(constantPoolGen.addMethodref(EDGES_CLASS, "recordCall", "(Ljava/lang/Object;I)V")));
+            for (int i = 0; i < argumentTypes.length; i++) {
+                probe.append(InstructionFactory.createLoad(argumentTypes[i], slots[i]));
+            }
+        } else {
+            //static and special invocations have a single target, constructors have no usable receiver yet
+            probe.append(sites.pushSiteId(site));
+            probe.append(new INVOKESTATIC(constantPoolGen.addMethodref(EDGES_CLASS, "recordCall", "(I)V")));
+        }
+        //jumps may land on the invocation with its arguments already pushed, they have to pass the probe
+        rewriter.insertBefore(instructionHandle, probe, true);
+    }
+
+    @Override
+    public void finishMethod(MethodRewriter rewriter) {
+    }
+
+    @Override
+    public void finishClass() {
+        sites.injectClassRegistration();
+    }
+
+    /**
+     * Probes run one at a time, so a slot of a given size at a given argument position serves every site.
+     */
+    private int argumentSlot(int position, Type type) {
+        String key = position + ":" + type.getSize();
+        Integer slot = argumentSlots.get(key);
+        if (slot == null) {
+            slot = ProbeInstructions.allocateLocal(methodGen, type);
+            argumentSlots.put(key, slot);
+        }
+        return slot;
+    }
+}
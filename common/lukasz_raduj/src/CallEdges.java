@@ -0,0 +1,318 @@
+import java.io.*;
+import java.lang.ref.WeakReference;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+
+/**
+ * Runtime of the call edge probes inserted by {@link CallEdgeAspect}. Calls are counted in a table shared by all
+ * threads, with open addressing over a fixed number of slots keyed by the call site and the runtime class
+ * of the receiver. A slot is claimed with a single compare-and-set when an edge is first seen, afterwards
+ * a call is a lookup and an atomic increment.
+ * <p>
+ * The capacity is {@value #CAPACITY_PROPERTY} edges, 65536 by default. Calls of edges which find no free slot
+ * are only counted as dropped. When the program exits the edges are written as a weighted call graph
+ * in the DOT format to {@value #DOT_FILE_PROPERTY} and as collapsed stacks for flame graphs
+ * to {@value #COLLAPSED_FILE_PROPERTY}, and sites calling more than one receiver class are printed.
+ */
+public class CallEdges {
+    public static final String CAPACITY_PROPERTY = "calledges.capacity";
+    public static final String DOT_FILE_PROPERTY = "calledges.dot.file";
+    public static final String COLLAPSED_FILE_PROPERTY = "calledges.collapsed.file";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int DEFAULT_CAPACITY = 1 << 16;
+    private static final int MAX_PROBES = 32;
+    //call sites of more receiver classes than this are not inlined by the JIT
+    private static final int BIMORPHIC = 2;
+
+    private static final AtomicReferenceArray<Edge> edges = new AtomicReferenceArray<Edge>(capacity());
+    private static final AtomicLongArray calls = new AtomicLongArray(edges.length());
+    private static final AtomicLong droppedCalls = new AtomicLong();
+
+    //calling method, offset and invoked method of every site
+    private static final SiteDescriptions sites = new SiteDescriptions();
+    private static final int CALLER = 0;
+    private static final int OFFSET = 1;
+    private static final int TARGET = 2;
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                writeReports();
+            }
+        });
+    }
+
+    private CallEdges() {
+    }
+
+    private static int capacity() {
+        int capacity = Math.max(Integer.getInteger(CAPACITY_PROPERTY, DEFAULT_CAPACITY), MAX_PROBES);
+        return Integer.highestOneBit(capacity - 1) << 1;
+    }
+
+    /**
+     * Reserves ids for the call sites of a class, called from its static initializer.
+     *
+     * @return id of the first site of the class
+     */
+    public static int reserveSites(int count) {
+        return sites.reserve(count);
+    }
+
+    /**
+     * @param descriptions calling method, offset and invoked method of consecutive sites, separated by tabs
+     * and new lines
+     */
+    public static void describeSites(int firstSite, String descriptions) {
+        sites.describe(firstSite, descriptions);
+    }
+
+    public static void recordCall(int site) {
+        count(site, null);
+    }
+
+    /**
+     * @param receiver object the method is invoked on, null calls are counted as calls of the invoked method
+     */
+    public static void recordCall(Object receiver, int site) {
+        count(site, receiver != null ? receiver.getClass() : null);
+    }
+
+    private static void count(int site, Class<?> receiverClass) {
+        int mask = edges.length() - 1;
+        int hash = site * 0x9E3779B9 + (receiverClass != null ? System.identityHashCode(receiverClass) : 0);
+        int index = (hash ^ (hash >>> 16)) & mask;
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            Edge edge = edges.get(index);
+            if (edge == null) {
+                Edge claimed = new Edge(site, receiverClass);
+                edge = edges.compareAndSet(index, null, claimed) ? claimed : edges.get(index);
+            }
+            if (edge.site == site && edge.isOf(receiverClass)) {
+                calls.incrementAndGet(index);
+                return;
+            }
+            index = (index + 1) & mask;
+        }
+        droppedCalls.incrementAndGet();
+    }
+
+    private static void writeReports() {
+        List<EdgeCalls> counted = edgeCalls();
+        if (counted.isEmpty()) {
+            return;
+        }
+
+        try {
+            writeDot(counted, new File(System.getProperty(DOT_FILE_PROPERTY, "calledges.dot")));
+            writeCollapsed(counted, new File(System.getProperty(COLLAPSED_FILE_PROPERTY, "calledges.collapsed")));
+        } catch (IOException ex) {
+            System.err.printf("Cannot write call edges! Reason: %s%n", ex);
+        }
+        printPolymorphicSites(System.out, counted);
+        if (droppedCalls.get() > 0) {
+            System.err.printf("%d calls not counted, raise %s%n", droppedCalls.get(), CAPACITY_PROPERTY);
+        }
+    }
+
+    /**
+     * Edges with their calls, most called first. Counts of running threads are read without stopping them.
+     */
+    private static List<EdgeCalls> edgeCalls() {
+        List<EdgeCalls> counted = new ArrayList<EdgeCalls>();
+        for (int index = 0; index < edges.length(); index++) {
+            Edge edge = edges.get(index);
+            long edgeCalls = calls.get(index);
+            if (edge != null && edgeCalls > 0) {
+                String target = sites.get(edge.site, TARGET);
+                if (edge.receiverName != null) {
+                    //declared class replaced by the runtime one
+                    String method = target.substring(target.lastIndexOf('.', target.indexOf('(')) + 1);
+                    target = edge.receiverName + "." + method;
+                }
+                counted.add(new EdgeCalls(edge.site, sites.get(edge.site, CALLER),
+                        sites.get(edge.site, OFFSET),
+                        target, edgeCalls));
+            }
+        }
+
+        Collections.sort(counted, new Comparator<EdgeCalls>() {
+            @Override
+            public int compare(EdgeCalls first, EdgeCalls second) {
+                return first.calls > second.calls ? -1 : (first.calls == second.calls ? 0 : 1);
+            }
+        });
+        return counted;
+    }
+
+    /**
+     * Methods are nodes and edges are weighted by calls from all sites of the caller.
+     * Edges from sites with more than two receiver classes are red.
+     */
+    private static void writeDot(List<EdgeCalls> counted, File file) throws IOException {
+        Map<Integer, List<EdgeCalls>> edgesBySite = edgesBySite(counted);
+        Map<String, Long> callsByEdge = new LinkedHashMap<String, Long>();
+        Set<String> megamorphicEdges = new LinkedHashSet<String>();
+        for (EdgeCalls edge : counted) {
+            String key = quote(edge.caller) + " -> " + quote(edge.target);
+            Long calls = callsByEdge.get(key);
+            callsByEdge.put(key, calls != null ? calls + edge.calls : edge.calls);
+            if (edgesBySite.get(edge.site).size() > BIMORPHIC) {
+                megamorphicEdges.add(key);
+            }
+        }
+
+        PrintWriter output = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+        try {
+            output.println("digraph calls {");
+            for (Map.Entry<String, Long> edge : callsByEdge.entrySet()) {
+                output.printf("    %s [label=\"%d\"%s];%n", edge.getKey(), edge.getValue(),
+                        megamorphicEdges.contains(edge.getKey()) ? ", color=red" : "");
+            }
+            output.println("}");
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * One line per caller and callee pair, the format flame graph tools read. Frames are methods without their
+     * signatures, which hold semicolons separating the frames.
+     */
+    private static void writeCollapsed(List<EdgeCalls> counted, File file) throws IOException {
+        Map<String, Long> callsByStack = new TreeMap<String, Long>();
+        for (EdgeCalls edge : counted) {
+            String stack = frame(edge.caller) + ";" + frame(edge.target);
+            Long calls = callsByStack.get(stack);
+            callsByStack.put(stack, calls != null ? calls + edge.calls : edge.calls);
+        }
+
+        PrintWriter output = new PrintWriter(new OutputStreamWriter(new FileOutputStream(file), UTF_8));
+        try {
+            for (Map.Entry<String, Long> stack : callsByStack.entrySet()) {
+                output.printf("%s %d%n", stack.getKey(), stack.getValue());
+            }
+        } finally {
+            output.close();
+        }
+    }
+
+    /**
+     * Prints sites which called methods of more than one receiver class, most receiver classes first,
+     * with calls of every class.
+     */
+    private static void printPolymorphicSites(PrintStream output, List<EdgeCalls> counted) {
+        final Map<Integer, List<EdgeCalls>> edgesBySite = edgesBySite(counted);
+
+        List<Integer> polymorphic = new ArrayList<Integer>();
+        for (Map.Entry<Integer, List<EdgeCalls>> site : edgesBySite.entrySet()) {
+            if (site.getValue().size() > 1) {
+                polymorphic.add(site.getKey());
+            }
+        }
+        if (polymorphic.isEmpty()) {
+            return;
+        }
+        Collections.sort(polymorphic, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                return edgesBySite.get(second).size() - edgesBySite.get(first).size();
+            }
+        });
+
+        for (Integer site : polymorphic) {
+            List<EdgeCalls> siteEdges = edgesBySite.get(site);
+            EdgeCalls first = siteEdges.get(0);
+            output.printf("%s@%s %s%n", first.caller, first.offset,
+                    siteEdges.size() > BIMORPHIC ? "megamorphic" : "bimorphic");
+            for (EdgeCalls edge : siteEdges) {
+                output.printf("    %-70s %12d%n", edge.target, edge.calls);
+            }
+        }
+        output.flush();
+    }
+
+    /**
+     * Edges of a site differ in the receiver class, so a site has as many edges as receiver classes.
+     */
+    private static Map<Integer, List<EdgeCalls>> edgesBySite(List<EdgeCalls> counted) {
+        Map<Integer, List<EdgeCalls>> edgesBySite = new LinkedHashMap<Integer, List<EdgeCalls>>();
+        for (EdgeCalls edge : counted) {
+            List<EdgeCalls> siteEdges = edgesBySite.get(edge.site);
+            if (siteEdges == null) {
+                siteEdges = new ArrayList<EdgeCalls>();
+                edgesBySite.put(edge.site, siteEdges);
+            }
+            siteEdges.add(edge);
+        }
+        return edgesBySite;
+    }
+
+    private static String quote(String name) {
+        return "\"" + name.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static String frame(String method) {
+        int signatureStart = method.indexOf('(');
+        return signatureStart >= 0 ? method.substring(0, signatureStart) : method;
+    }
+
+    /**
+     * Key of a slot, never changed once the slot is claimed. The receiver class is weakly referenced, so classes
+     * of short-lived class loaders can still be unloaded, and its name is kept for the reports.
+     */
+    private static final class Edge {
+        private final int site;
+        private final WeakReference<Class<?>> receiverClass;
+        private final String receiverName;
+
+        Edge(int site, Class<?> receiverClass) {
+            this.site = site;
+            this.receiverClass = receiverClass != null ? new WeakReference<Class<?>>(receiverClass) : null;
+            this.receiverName = receiverClass != null ? receiverClass.getName() : null;
+        }
+
+        /**
+         * Edges of unloaded classes never match again, a class loaded anew gets an edge of its own.
+         */
+        boolean isOf(Class<?> receiverClass) {
+            if (this.receiverClass == null) {
+                return receiverClass == null;
+            }
+            return receiverClass != null && this.receiverClass.get() == receiverClass;
+        }
+    }
+
+    /**
+     * Edge resolved to the names of its methods, with calls counted so far.
+     */
+    private static final class EdgeCalls {
+        private final int site;
+        private final String caller;
+        private final String offset;
+        private final String target;
+        private final long calls;
+
+        EdgeCalls(int site, String caller, String offset, String target, long calls) {
+            this.site = site;
+            this.caller = caller;
+            this.offset = offset;
+            this.target = target;
+            this.calls = calls;
+        }
+    }
+}
@@ -0,0 +1,45 @@
+import org.apache.bcel.Constants;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+
+/**
+ * Helpers for probes which keep per-class state in synthetic static fields set up by the static initializer.
+ */
+public class ClassInitializers {
+    private static final String STATIC_INITIALIZER = "<clinit>";
+
+    private ClassInitializers() {
+    }
+
+    public static void addSyntheticField(ClassGen classGen, Type type, String name) {
+        int fieldAccess = Constants.ACC_STATIC | Constants.ACC_FINAL | Constants.ACC_SYNTHETIC
+                | (classGen.isInterface() ? Constants.ACC_PUBLIC : Constants.ACC_PRIVATE);
+        classGen.addField(new FieldGen(fieldAccess, type, name, classGen.getConstantPool()).getField());
+    }
+
+    /**
+     * Inserts the instructions at the very beginning of the static initializer, which is created if the class has none.
+     */
+    public static void prepend(ClassGen classGen, InstructionList instructions) {
+        ConstantPoolGen constantPoolGen = classGen.getConstantPool();
+        Method staticInitializer = classGen.containsMethod(STATIC_INITIALIZER, "()V");
+        MethodGen methodGen;
+        if (staticInitializer != null) {
+            methodGen = new MethodGen(staticInitializer, classGen.getClassName(), constantPoolGen);
+            methodGen.getInstructionList().insert(instructions);
+        } else {
+            instructions.append(InstructionConstants.RETURN);
+            methodGen = new MethodGen(Constants.ACC_STATIC, Type.VOID, Type.NO_ARGS, null, STATIC_INITIALIZER,
+                    classGen.getClassName(), instructions, constantPoolGen);
+        }
+
+        methodGen.setMaxStack();
+        methodGen.setMaxLocals();
+        if (staticInitializer != null) {
+            classGen.replaceMethod(staticInitializer, methodGen.getMethod());
+        } else {
+            classGen.addMethod(methodGen.getMethod());
+        }
+    }
+}
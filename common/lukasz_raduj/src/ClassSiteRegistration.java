@@ -0,0 +1,87 @@
+import org.apache.bcel.generic.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Registers the probe sites of a class with the runtime class of an aspect from the static initializer. A site is
+ * whatever the probes of the aspect tell apart by an int id: a call site, a method, a lock.
+ * <p>
+ * The initializer reserves ids for all sites of the class with {@code reserveSites(I)I} of the runtime class, keeps
+ * the first of them in a synthetic static field and passes the descriptions of the sites, one per line,
+ * to {@code describeSites(ILjava/lang/String;)V}. Probes push the id of their site as that field plus the local id.
+ * A string constant holds at most 65535 bytes of modified UTF-8, so descriptions are passed in chunks.
+ */
+public class ClassSiteRegistration {
+    //a char takes at most 3 bytes of modified UTF-8
+    private static final int DESCRIPTIONS_CHUNK_LENGTH = 20000;
+
+    private final ClassGen classGen;
+    private final ConstantPoolGen constantPoolGen;
+    private final String runtimeClass;
+    private final String baseFieldName;
+    private final List<String> descriptions = new ArrayList<String>();
+
+    public ClassSiteRegistration(ClassGen classGen, String runtimeClass, String baseFieldName) {
+        this.classGen = classGen;
+        this.constantPoolGen = classGen.getConstantPool();
+        this.runtimeClass = runtimeClass;
+        this.baseFieldName = baseFieldName;
+    }
+
+    /**
+     * @param description columns of the site separated by tabs, without new lines
+     * @return local id of the site
+     */
+    public int addSite(String description) {
+        descriptions.add(description);
+        return descriptions.size() - 1;
+    }
+
+    public int size() {
+        return descriptions.size();
+    }
+
+    public boolean isEmpty() {
+        return descriptions.isEmpty();
+    }
+
+    public InstructionList pushSiteId(int localId) {
+        InstructionList instructions = new InstructionList();
+        instructions.append(new GETSTATIC(constantPoolGen.addFieldref(classGen.getClassName(), baseFieldName, "I")));
+        instructions.append(new PUSH(constantPoolGen, localId));
+        instructions.append(InstructionConstants.IADD);
+        return instructions;
+    }
+
+    /**
+     * Adds the base field and prepends the registration to the static initializer, nothing when there are no sites.
+     */
+    public void injectClassRegistration() {
+        if (descriptions.isEmpty()) {
+            return;
+        }
+        ClassInitializers.addSyntheticField(classGen, Type.INT, baseFieldName);
+
+        InstructionList registration = new InstructionList();
+        registration.append(new PUSH(constantPoolGen, descriptions.size()));
+        registration.append(new INVOKESTATIC(constantPoolGen.addMethodref(runtimeClass, "reserveSites", "(I)I")));
+        registration.append(new PUTSTATIC(constantPoolGen.addFieldref(classGen.getClassName(), baseFieldName, "I")));
+
+        int describeSites = constantPoolGen.addMethodref(runtimeClass, "describeSites", "(ILjava/lang/String;)V");
+        int chunkStart = 0;
+        StringBuilder chunk = new StringBuilder();
+        for (int site = 0; site < descriptions.size(); site++) {
+            chunk.append(chunk.length() > 0 ? "\n" : "").append(descriptions.get(site));
+            if (chunk.length() >= DESCRIPTIONS_CHUNK_LENGTH || site == descriptions.size() - 1) {
+                registration.append(pushSiteId(chunkStart));
+                registration.append(new PUSH(constantPoolGen, chunk.toString()));
+                registration.append(new INVOKESTATIC(describeSites));
+                chunkStart = site + 1;
+                chunk.setLength(0);
+            }
+        }
+        ClassInitializers.prepend(classGen, registration);
+    }
+}
@@ -0,0 +1,131 @@
+import java.io.*;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * Reads class files from a class path of directories and jars. It replaces BCEL's global Repository, which keeps
+ * every class it parsed for the life of the process and resolves the class path again on every lookup.
+ * The class path is split once, and a jar is opened on its first lookup and read in place. Nothing read is kept:
+ * callers parse the bytes into classes of their own and drop them when done, so memory stays flat however many
+ * classes go through a source.
+ * <p>
+ * A source is used by a single thread, and closing it closes its jars.
+ */
+public class ClassSource implements Closeable {
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final List<File> locations = new ArrayList<File>();
+    private final Map<File, ZipFile> jars = new HashMap<File, ZipFile>();
+
+    /**
+     * Source of the class path of this JVM, where BCEL's Repository looks by default.
+     */
+    public static ClassSource fromClassPath() {
+        return new ClassSource(System.getProperty("java.class.path"));
+    }
+
+    /**
+     * @param classPath directories and jars separated like in the class path, an empty entry is the current directory
+     */
+    public ClassSource(String classPath) {
+        for (String location : classPath.split(File.pathSeparator, -1)) {
+            locations.add(new File(location.isEmpty() ? "." : location));
+        }
+    }
+
+    /**
+     * Reads the class from the first location of the class path holding it.
+     *
+     * @param className name of the class, with dots or slashes between packages
+     */
+    public byte[] readClass(String className) throws IOException, ClassNotFoundException {
+        String fileName = fileName(className);
+        for (File location : locations) {
+            if (location.isDirectory()) {
+                File classFile = new File(location, fileName);
+                if (classFile.isFile()) {
+                    return readFile(classFile);
+                }
+            } else if (isJar(location)) {
+                ZipFile jar = jar(location);
+                ZipEntry entry = jar.getEntry(fileName);
+                if (entry != null) {
+                    InputStream input = jar.getInputStream(entry);
+                    try {
+                        return Streams.readFully(input);
+                    } finally {
+                        input.close();
+                    }
+                }
+            }
+        }
+        throw new ClassNotFoundException("No class file of " + className + " on the class path");
+    }
+
+    /**
+     * @return file of the class when the first location of the class path holding it is a directory,
+     * null when it is a jar or no location holds the class
+     */
+    public File findClassFile(String className) throws IOException {
+        String fileName = fileName(className);
+        for (File location : locations) {
+            if (location.isDirectory()) {
+                File classFile = new File(location, fileName);
+                if (classFile.isFile()) {
+                    return classFile;
+                }
+            } else if (isJar(location) && jar(location).getEntry(fileName) != null) {
+                return null;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (ZipFile jar : jars.values()) {
+            try {
+                jar.close();
+            } catch (IOException ex) {
+                failure = ex;
+            }
+        }
+        jars.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static String fileName(String className) {
+        return className.replace('.', '/') + CLASS_SUFFIX;
+    }
+
+    private static boolean isJar(File location) {
+        String name = location.getName().toLowerCase();
+        return location.isFile() && (name.endsWith(".jar") || name.endsWith(".zip"));
+    }
+
+    private ZipFile jar(File location) throws IOException {
+        ZipFile jar = jars.get(location);
+        if (jar == null) {
+            jar = new ZipFile(location);
+            jars.put(location, jar);
+        }
+        return jar;
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            return Streams.readFully(input);
+        } finally {
+            input.close();
+        }
+    }
+}
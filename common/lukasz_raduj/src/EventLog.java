@@ -0,0 +1,405 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Runtime of the event log probes. Every event is a fixed-size binary record (kind, site id, thread id,
+ * timestamp, value bits) appended to a buffer owned by the calling thread, so probes do not format and take only
+ * the lock of their own buffer, which no other thread takes before exit.
+ * Full buffers are handed over to a background thread which copies them into a memory-mapped log file.
+ * At most {@value #MAX_FULL_BUFFERS} buffers wait for it, events of buffers handed over beyond that are dropped
+ * and counted. Use {@link EventLogDecoder} to turn the log back into text.
+ * <p>
+ * The log file is {@code events.log} in the working directory, unless the {@code eventlog.file} property says otherwise.
+ */
+public class EventLog {
+    public static final int RECORD_SIZE = 32;
+
+    //no kind is 0, so the zeroed tail of a log cut short by a crash reads as the end of the log
+    public static final int KIND_SITE = 1;
+    public static final int KIND_NONE = 2;
+    public static final int KIND_INT = 3;
+    public static final int KIND_LONG = 4;
+    public static final int KIND_FLOAT = 5;
+    public static final int KIND_DOUBLE = 6;
+    public static final int KIND_BOOLEAN = 7;
+    public static final int KIND_CHAR = 8;
+    public static final int KIND_TEXT = 9;
+    public static final int KIND_CLASS = 10;
+    public static final int KIND_REFERENCE = 11;
+    public static final int KIND_TYPE = 12;
+
+    /**
+     * Type id of null references, ids of types start above it.
+     */
+    public static final int NULL_TYPE_ID = 0;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    //buffers waiting for the writer, 16 MB of events
+    private static final int MAX_FULL_BUFFERS = 256;
+    private static final int MAPPED_REGION_SIZE = 16 * 1024 * 1024;
+    private static final long FLUSH_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final ByteBuffer END_OF_LOG = ByteBuffer.allocate(0);
+
+    private static final ConcurrentMap<String, Integer> siteIds = new ConcurrentHashMap<String, Integer>();
+    private static final AtomicInteger nextSiteId = new AtomicInteger();
+    private static final ConcurrentMap<String, Integer> typeIds = new ConcurrentHashMap<String, Integer>();
+    private static final AtomicInteger nextTypeId = new AtomicInteger(NULL_TYPE_ID + 1);
+
+    private static final BlockingQueue<ByteBuffer> fullBuffers = new ArrayBlockingQueue<ByteBuffer>(MAX_FULL_BUFFERS);
+    private static final AtomicLong droppedEvents = new AtomicLong();
+    private static final ConcurrentLinkedQueue<ByteBuffer> freeBuffers = new ConcurrentLinkedQueue<ByteBuffer>();
+    private static final CopyOnWriteArrayList<ThreadBuffer> allBuffers = new CopyOnWriteArrayList<ThreadBuffer>();
+    private static final ThreadLocal<ThreadBuffer> threadBuffers = new ThreadLocal<ThreadBuffer>() {
+        @Override
+        protected ThreadBuffer initialValue() {
+            ThreadBuffer threadBuffer = new ThreadBuffer(Thread.currentThread().getId());
+            allBuffers.add(threadBuffer);
+            return threadBuffer;
+        }
+    };
+
+    private static final Thread writer = startWriter(new File(System.getProperty("eventlog.file", "events.log")));
+
+    private EventLog() {
+    }
+
+    public static void record(String site) {
+        threadBuffers.get().append(KIND_NONE, siteId(site), 0L);
+    }
+
+    public static void record(String site, int value) {
+        threadBuffers.get().append(KIND_INT, siteId(site), value);
+    }
+
+    public static void record(String site, long value) {
+        threadBuffers.get().append(KIND_LONG, siteId(site), value);
+    }
+
+    public static void record(String site, float value) {
+        threadBuffers.get().append(KIND_FLOAT, siteId(site), Float.floatToRawIntBits(value));
+    }
+
+    public static void record(String site, double value) {
+        threadBuffers.get().append(KIND_DOUBLE, siteId(site), Double.doubleToRawLongBits(value));
+    }
+
+    public static void record(String site, boolean value) {
+        threadBuffers.get().append(KIND_BOOLEAN, siteId(site), value ? 1L : 0L);
+    }
+
+    public static void record(String site, char value) {
+        threadBuffers.get().append(KIND_CHAR, siteId(site), value);
+    }
+
+    public static void record(String site, String value) {
+        threadBuffers.get().appendText(KIND_TEXT, siteId(site), value);
+    }
+
+    /**
+     * Records the reference by its type and identity hash only, see {@link #record(int, Object)}.
+     */
+    public static void record(String site, Object value) {
+        threadBuffers.get().appendReference(siteId(site), value);
+    }
+
+    /**
+     * Reserves ids for the sites of a class instrumented with a {@link SiteIdTable}, called from its static initializer.
+     *
+     * @return id of the first site of the class
+     */
+    public static int registerClass(String className, int sitesCount) {
+        int baseId = nextSiteId.getAndAdd(sitesCount);
+        threadBuffers.get().appendText(KIND_CLASS, baseId, className);
+        return baseId;
+    }
+
+    public static void record(int siteId) {
+        threadBuffers.get().append(KIND_NONE, siteId, 0L);
+    }
+
+    public static void record(int siteId, int value) {
+        threadBuffers.get().append(KIND_INT, siteId, value);
+    }
+
+    public static void record(int siteId, long value) {
+        threadBuffers.get().append(KIND_LONG, siteId, value);
+    }
+
+    public static void record(int siteId, float value) {
+        threadBuffers.get().append(KIND_FLOAT, siteId, Float.floatToRawIntBits(value));
+    }
+
+    public static void record(int siteId, double value) {
+        threadBuffers.get().append(KIND_DOUBLE, siteId, Double.doubleToRawLongBits(value));
+    }
+
+    public static void record(int siteId, boolean value) {
+        threadBuffers.get().append(KIND_BOOLEAN, siteId, value ? 1L : 0L);
+    }
+
+    public static void record(int siteId, char value) {
+        threadBuffers.get().append(KIND_CHAR, siteId, value);
+    }
+
+    public static void record(int siteId, String value) {
+        threadBuffers.get().appendText(KIND_TEXT, siteId, value);
+    }
+
+    /**
+     * Records the reference by the id of its type and its identity hash, packed into the value bits, so neither
+     * user code like toString nor formatting runs in the probe. Types are named in the log once, like sites.
+     */
+    public static void record(int siteId, Object value) {
+        threadBuffers.get().appendReference(siteId, value);
+    }
+
+    /**
+     * Sites are string constants, so after the first event of a site this is a single map lookup.
+     * The site text is logged once, by the thread which saw it first.
+     */
+    private static int siteId(String site) {
+        Integer id = siteIds.get(site);
+        if (id != null) {
+            return id;
+        }
+
+        Integer newId = nextSiteId.getAndIncrement();
+        Integer existingId = siteIds.putIfAbsent(site, newId);
+        if (existingId != null) {
+            return existingId;
+        }
+        threadBuffers.get().appendText(KIND_SITE, newId, site);
+        return newId;
+    }
+
+    /**
+     * Like sites, the name of a type is logged once, by the thread which saw it first.
+     */
+    private static int typeId(Class<?> type) {
+        String typeName = type.getName();
+        Integer id = typeIds.get(typeName);
+        if (id != null) {
+            return id;
+        }
+
+        Integer newId = nextTypeId.getAndIncrement();
+        Integer existingId = typeIds.putIfAbsent(typeName, newId);
+        if (existingId != null) {
+            return existingId;
+        }
+        threadBuffers.get().appendText(KIND_TYPE, newId, typeName);
+        return newId;
+    }
+
+    private static ByteBuffer takeFreeBuffer(int minimalSize) {
+        if (minimalSize > BUFFER_SIZE) {
+            return ByteBuffer.allocate(minimalSize);
+        }
+        ByteBuffer buffer = freeBuffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    private static Thread startWriter(final File logFile) {
+        Thread writerThread = new Thread("event-log-writer") {
+            @Override
+            public void run() {
+                try {
+                    writeLog(logFile);
+                } catch (Exception ex) {
+                    System.err.printf("Cannot write event log %s! Reason: %s%n", logFile, ex);
+                }
+            }
+        };
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                close();
+            }
+        });
+        return writerThread;
+    }
+
+    private static void writeLog(File logFile) throws IOException, InterruptedException {
+        RandomAccessFile file = new RandomAccessFile(logFile, "rw");
+        try {
+            FileChannel channel = file.getChannel();
+            channel.truncate(0);
+            long regionStart = 0;
+            MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, MAPPED_REGION_SIZE);
+
+            ByteBuffer buffer;
+            while ((buffer = fullBuffers.take()) != END_OF_LOG) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    if (!region.hasRemaining()) {
+                        regionStart += region.position();
+                        region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, MAPPED_REGION_SIZE);
+                    }
+                    int chunk = Math.min(buffer.remaining(), region.remaining());
+                    ByteBuffer slice = buffer.slice();
+                    slice.limit(chunk);
+                    region.put(slice);
+                    buffer.position(buffer.position() + chunk);
+                }
+
+                if (buffer.capacity() == BUFFER_SIZE) {
+                    buffer.clear();
+                    freeBuffers.offer(buffer);
+                }
+            }
+
+            region.force();
+            channel.truncate(regionStart + region.position());
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * Hands over whatever threads have buffered, waiting for the writer when it is behind, and waits until it is
+     * written. Threads still running may lose the events they record meanwhile.
+     */
+    private static void close() {
+        try {
+            for (ThreadBuffer threadBuffer : allBuffers) {
+                threadBuffer.handOverAtExit();
+            }
+            while (writer.isAlive() && !fullBuffers.offer(END_OF_LOG, FLUSH_INTERVAL_NANOS, TimeUnit.NANOSECONDS)) {
+                //the writer is still copying full buffers
+            }
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        if (droppedEvents.get() > 0) {
+            System.err.printf("%d events not logged, the event log writer fell behind%n", droppedEvents.get());
+        }
+    }
+
+    /**
+     * Events of a single thread. Only the owner appends, the lock keeps a record whole while the buffer is handed over
+     * at exit by another thread, and is otherwise uncontended.
+     */
+    private static final class ThreadBuffer {
+        private final long threadId;
+        //guarded by this
+        private ByteBuffer buffer = takeFreeBuffer(BUFFER_SIZE);
+        private int bufferedEvents;
+        private long flushDeadline = System.nanoTime() + FLUSH_INTERVAL_NANOS;
+        //sites mostly see references of a single type, which then skips the map lookup
+        private Class<?> lastType;
+        private int lastTypeId;
+
+        private ThreadBuffer(long threadId) {
+            this.threadId = threadId;
+        }
+
+        synchronized void append(int kind, int siteId, long valueBits) {
+            if (buffer.remaining() < RECORD_SIZE) {
+                handOver();
+            }
+            long timestamp = writeHeader(buffer, kind, siteId, valueBits);
+            flushIfIdleFor(timestamp);
+        }
+
+        void appendReference(int siteId, Object value) {
+            long valueBits = NULL_TYPE_ID;
+            if (value != null) {
+                Class<?> type = value.getClass();
+                if (type != lastType) {
+                    lastTypeId = typeId(type);
+                    lastType = type;
+                }
+                valueBits = ((long) lastTypeId << 32) | (System.identityHashCode(value) & 0xFFFFFFFFL);
+            }
+            append(KIND_REFERENCE, siteId, valueBits);
+        }
+
+        synchronized void appendText(int kind, int siteId, String text) {
+            byte[] bytes = text.getBytes(UTF_8);
+            if (buffer.remaining() < RECORD_SIZE + bytes.length) {
+                handOver();
+                if (buffer.capacity() < RECORD_SIZE + bytes.length) {
+                    buffer = takeFreeBuffer(RECORD_SIZE + bytes.length);
+                }
+            }
+            ByteBuffer target = buffer;
+            long timestamp = writeHeader(target, kind, siteId, bytes.length);
+            target.put(bytes);
+            flushIfIdleFor(timestamp);
+        }
+
+        private long writeHeader(ByteBuffer target, int kind, int siteId, long valueBits) {
+            long timestamp = System.nanoTime();
+            target.putInt(kind);
+            target.putInt(siteId);
+            target.putLong(threadId);
+            target.putLong(timestamp);
+            target.putLong(valueBits);
+            bufferedEvents++;
+            return timestamp;
+        }
+
+        //threads recording rarely would otherwise keep their events until exit
+        private void flushIfIdleFor(long timestamp) {
+            if (timestamp - flushDeadline > 0) {
+                handOver();
+            }
+        }
+
+        synchronized void handOver() {
+            if (buffer.position() > 0) {
+                if (fullBuffers.offer(buffer)) {
+                    buffer = takeFreeBuffer(BUFFER_SIZE);
+                } else {
+                    drop();
+                }
+                bufferedEvents = 0;
+            }
+            flushDeadline = System.nanoTime() + FLUSH_INTERVAL_NANOS;
+        }
+
+        /**
+         * Hands the buffer over at exit, waiting while the writer is behind.
+         */
+        synchronized void handOverAtExit() throws InterruptedException {
+            if (buffer.position() == 0) {
+                return;
+            }
+            while (writer.isAlive()) {
+                if (fullBuffers.offer(buffer, FLUSH_INTERVAL_NANOS, TimeUnit.NANOSECONDS)) {
+                    buffer = takeFreeBuffer(BUFFER_SIZE);
+                    bufferedEvents = 0;
+                    return;
+                }
+            }
+            drop();
+            bufferedEvents = 0;
+        }
+
+        private void drop() {
+            droppedEvents.addAndGet(bufferedEvents);
+            buffer.clear();
+        }
+    }
+}
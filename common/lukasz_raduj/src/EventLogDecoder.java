@@ -0,0 +1,365 @@
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+
+/**
+ * Prints an {@link EventLog} file as the text the probes used to print directly:
+ * text of the site followed by the recorded value, if there is one.
+ * Threads buffer their events separately, so events of all threads are merged in order of their timestamps.
+ * <p>
+ * Texts of sites identified by ids are read from the {@link SiteIdTable} sidecar files,
+ * found in the directory or jar given with {@code -sites}.
+ */
+public class EventLogDecoder {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String SITES_OPTION = "-sites";
+    //records of a thread read at once while printing
+    private static final long MAX_RUN_SIZE = 1 << 20;
+
+    private final File sitesLocation;
+    private final Map<Integer, String> sites = new HashMap<Integer, String>();
+    private final TreeMap<Integer, String> classesByBaseId = new TreeMap<Integer, String>();
+    private final Map<Integer, String> types = new HashMap<Integer, String>();
+    private final Map<String, Map<Integer, String>> siteTables = new HashMap<String, Map<Integer, String>>();
+    private final Map<Long, ThreadEvents> threads = new LinkedHashMap<Long, ThreadEvents>();
+    private File logFile;
+
+    public static void main(String[] args) {
+        try {
+            if (args.length != 1 && !(args.length == 3 && SITES_OPTION.equals(args[0]))) {
+                printUsage();
+                System.exit(1);
+            }
+
+            EventLogDecoder decoder = new EventLogDecoder(args.length == 3 ? new File(args[1]) : null);
+            decoder.read(new File(args[args.length - 1]));
+            decoder.print(new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out))));
+        } catch (Exception ex) {
+            System.out.printf("Cannot decode event log! Reason: %s%n", ex);
+        }
+    }
+
+    private static void printUsage() {
+        System.out.println("Usage: EventLogDecoder [" + SITES_OPTION + " <directory or .jar>] <event log file>");
+    }
+
+    public EventLogDecoder(File sitesLocation) {
+        this.sitesLocation = sitesLocation;
+    }
+
+    /**
+     * Reads texts of sites, classes and types, and finds where the events of every thread are. Events themselves
+     * are read again while printing. The log ends at the first record which is not whole or of no known kind,
+     * as the zeroed tail of a log cut short by a crash is.
+     */
+    public void read(File logFile) throws IOException {
+        this.logFile = logFile;
+        DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile)));
+        try {
+            long remaining = logFile.length();
+            long position = 0;
+            ThreadEvents lastThread = null;
+            while (remaining >= EventLog.RECORD_SIZE) {
+                int kind = input.readInt();
+                int siteId = input.readInt();
+                long threadId = input.readLong();
+                input.readLong(); //timestamp
+                long valueBits = input.readLong();
+                if (kind < EventLog.KIND_SITE || kind > EventLog.KIND_TYPE) {
+                    return;
+                }
+
+                long recordSize = EventLog.RECORD_SIZE;
+                if (hasText(kind)) {
+                    if (valueBits < 0 || valueBits > remaining - EventLog.RECORD_SIZE) {
+                        return;
+                    }
+                    byte[] bytes = new byte[(int) valueBits];
+                    input.readFully(bytes);
+                    recordSize += bytes.length;
+                    String text = new String(bytes, UTF_8);
+                    if (kind == EventLog.KIND_SITE) {
+                        sites.put(siteId, text);
+                    } else if (kind == EventLog.KIND_CLASS) {
+                        classesByBaseId.put(siteId, text);
+                    } else if (kind == EventLog.KIND_TYPE) {
+                        types.put(siteId, text);
+                    }
+                }
+
+                //buffers hold records of a single thread, one after another
+                if (lastThread == null || lastThread.threadId != threadId) {
+                    lastThread = threads.get(threadId);
+                    if (lastThread == null) {
+                        lastThread = new ThreadEvents(threadId, threads.size());
+                        threads.put(threadId, lastThread);
+                    }
+                    lastThread.startRun(position);
+                } else if (lastThread.runSize() >= MAX_RUN_SIZE) {
+                    lastThread.startRun(position);
+                }
+                lastThread.extendRun(position + recordSize);
+                position += recordSize;
+                remaining -= recordSize;
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Events of every thread are in order of their timestamps already, so they are merged a run of records
+     * at a time instead of sorted whole.
+     */
+    public void print(PrintWriter output) throws IOException {
+        RandomAccessFile log = new RandomAccessFile(logFile, "r");
+        try {
+            PriorityQueue<ThreadEvents> merged = new PriorityQueue<ThreadEvents>(Math.max(threads.size(), 1),
+                    new Comparator<ThreadEvents>() {
+                        @Override
+                        public int compare(ThreadEvents first, ThreadEvents second) {
+                            long firstTimestamp = first.event.timestamp;
+                            long secondTimestamp = second.event.timestamp;
+                            if (firstTimestamp != secondTimestamp) {
+                                return firstTimestamp < secondTimestamp ? -1 : 1;
+                            }
+                            return first.order - second.order;
+                        }
+                    });
+            for (ThreadEvents thread : threads.values()) {
+                if (thread.advance(log)) {
+                    merged.add(thread);
+                }
+            }
+
+            ThreadEvents thread;
+            while ((thread = merged.poll()) != null) {
+                Event event = thread.event;
+                String site = siteText(event.siteId);
+                output.print(site != null ? site : "<unknown site " + event.siteId + ">");
+                if (event.kind != EventLog.KIND_NONE) {
+                    output.println(formatValue(event));
+                }
+                if (thread.advance(log)) {
+                    merged.add(thread);
+                }
+            }
+            output.flush();
+        } finally {
+            log.close();
+        }
+    }
+
+    private static boolean hasText(int kind) {
+        return kind == EventLog.KIND_SITE || kind == EventLog.KIND_TEXT || kind == EventLog.KIND_CLASS
+                || kind == EventLog.KIND_TYPE;
+    }
+
+    private String siteText(int siteId) throws IOException {
+        String site = sites.get(siteId);
+        if (site != null) {
+            return site;
+        }
+
+        Map.Entry<Integer, String> siteClass = classesByBaseId.floorEntry(siteId);
+        if (siteClass == null) {
+            return null;
+        }
+        return siteTable(siteClass.getValue()).get(siteId - siteClass.getKey());
+    }
+
+    private Map<Integer, String> siteTable(String className) throws IOException {
+        Map<Integer, String> siteTable = siteTables.get(className);
+        if (siteTable != null) {
+            return siteTable;
+        }
+
+        InputStream input = openSiteTable(className.replace('.', '/') + SiteIdTable.FILE_SUFFIX);
+        if (input == null) {
+            siteTable = Collections.emptyMap();
+        } else {
+            try {
+                siteTable = readSiteTexts(input);
+            } finally {
+                input.close();
+            }
+        }
+        siteTables.put(className, siteTable);
+        return siteTable;
+    }
+
+    /**
+     * Reads texts of the sites from a {@link SiteIdTable}, indexed by their local ids.
+     */
+    private static Map<Integer, String> readSiteTexts(InputStream input) throws IOException {
+        Map<Integer, String> texts = new HashMap<Integer, String>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(input, UTF_8));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith("#")) {
+                continue;
+            }
+            String[] columns = line.split("\t", -1);
+            texts.put(Integer.parseInt(columns[0]), unescape(columns[columns.length - 1]));
+        }
+        return texts;
+    }
+
+    private InputStream openSiteTable(String fileName) throws IOException {
+        File location = sitesLocation != null ? sitesLocation : new File(".");
+        if (location.isDirectory()) {
+            File file = new File(location, fileName);
+            return file.isFile() ? new FileInputStream(file) : null;
+        }
+
+        final ZipFile jar = new ZipFile(location);
+        ZipEntry entry = jar.getEntry(fileName);
+        if (entry == null) {
+            jar.close();
+            return null;
+        }
+        return new FilterInputStream(jar.getInputStream(entry)) {
+            @Override
+            public void close() throws IOException {
+                jar.close();
+            }
+        };
+    }
+
+    private static String unescape(String text) {
+        StringBuilder unescaped = new StringBuilder(text.length());
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '\\' && i + 1 < text.length()) {
+                char escaped = text.charAt(++i);
+                unescaped.append(escaped == 't' ? '\t' : escaped == 'n' ? '\n' : escaped);
+            } else {
+                unescaped.append(c);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    private String formatValue(Event event) {
+        switch (event.kind) {
+            case EventLog.KIND_INT:
+                return String.valueOf((int) event.valueBits);
+            case EventLog.KIND_LONG:
+                return String.valueOf(event.valueBits);
+            case EventLog.KIND_FLOAT:
+                return String.valueOf(Float.intBitsToFloat((int) event.valueBits));
+            case EventLog.KIND_DOUBLE:
+                return String.valueOf(Double.longBitsToDouble(event.valueBits));
+            case EventLog.KIND_BOOLEAN:
+                return String.valueOf(event.valueBits != 0);
+            case EventLog.KIND_CHAR:
+                return String.valueOf((char) event.valueBits);
+            case EventLog.KIND_TEXT:
+                return event.text;
+            case EventLog.KIND_REFERENCE:
+                return formatReference(event.valueBits);
+            default:
+                throw new IllegalArgumentException("Unknown event kind: " + event.kind);
+        }
+    }
+
+    /**
+     * References are printed like {@link Object#toString()} prints them by default: type name and identity hash.
+     */
+    private String formatReference(long valueBits) {
+        int typeId = (int) (valueBits >>> 32);
+        if (typeId == EventLog.NULL_TYPE_ID) {
+            return "null";
+        }
+        String type = types.get(typeId);
+        return String.format("%s@%x", type != null ? type : "<unknown type " + typeId + ">", (int) valueBits);
+    }
+
+    /**
+     * Events of a single thread, runs of records in the log given by their start and end offsets.
+     * Only the run being printed is held in memory.
+     */
+    private static class ThreadEvents {
+        private final long threadId;
+        //threads seen first come first among events of the same timestamp
+        private final int order;
+        private final List<long[]> runs = new ArrayList<long[]>();
+        private int nextRun;
+        private DataInputStream run;
+        private Event event;
+
+        private ThreadEvents(long threadId, int order) {
+            this.threadId = threadId;
+            this.order = order;
+        }
+
+        private void startRun(long start) {
+            runs.add(new long[]{start, start});
+        }
+
+        private void extendRun(long end) {
+            runs.get(runs.size() - 1)[1] = end;
+        }
+
+        private long runSize() {
+            long[] offsets = runs.get(runs.size() - 1);
+            return offsets[1] - offsets[0];
+        }
+
+        /**
+         * Reads the next event of the thread, skipping texts of sites, classes and types.
+         *
+         * @return false if the thread has no more events
+         */
+        private boolean advance(RandomAccessFile log) throws IOException {
+            while (true) {
+                if (run == null || run.available() == 0) {
+                    if (nextRun == runs.size()) {
+                        event = null;
+                        return false;
+                    }
+                    long[] offsets = runs.get(nextRun++);
+                    byte[] bytes = new byte[(int) (offsets[1] - offsets[0])];
+                    log.seek(offsets[0]);
+                    log.readFully(bytes);
+                    run = new DataInputStream(new ByteArrayInputStream(bytes));
+                }
+
+                int kind = run.readInt();
+                int siteId = run.readInt();
+                run.readLong(); //thread id
+                long timestamp = run.readLong();
+                long valueBits = run.readLong();
+                String text = null;
+                if (hasText(kind)) {
+                    byte[] bytes = new byte[(int) valueBits];
+                    run.readFully(bytes);
+                    text = new String(bytes, UTF_8);
+                }
+                if (kind != EventLog.KIND_SITE && kind != EventLog.KIND_CLASS && kind != EventLog.KIND_TYPE) {
+                    event = new Event(kind, siteId, timestamp, valueBits, text);
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static class Event {
+        private final int kind;
+        private final int siteId;
+        private final long timestamp;
+        private final long valueBits;
+        private final String text;
+
+        private Event(int kind, int siteId, long timestamp, long valueBits, String text) {
+            this.kind = kind;
+            this.siteId = siteId;
+            this.timestamp = timestamp;
+            this.valueBits = valueBits;
+            this.text = text;
+        }
+    }
+}
@@ -0,0 +1,334 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Runtime of the field statistics probes inserted by {@link GetFieldDescriptionAspect} with its
+ * {@value GetFieldDescriptionAspect#FIELD_STATISTICS_OPTION} option. For every field the probes keep the count of reads,
+ * minimum, maximum, running mean and variance, a histogram of magnitudes and how many values were above the threshold
+ * of the field type. Integral values are recorded as longs and floating point ones as doubles, nothing is truncated.
+ * <p>
+ * Every thread aggregates into its own cells, allocated on the first read of a field, so recording neither allocates
+ * nor locks. Cells are merged only when a summary is built: at exit, and every {@value #INTERVAL_PROPERTY} seconds
+ * when the property is set.
+ * <p>
+ * Thresholds are given by {@code fieldstats.threshold.<type>} properties, e.g. {@code fieldstats.threshold.double=0.5}.
+ * Numbers of any type are above the threshold when greater than 30 by default, chars and booleans never are.
+ * <p>
+ * The histogram groups values by sign and by the highest set bit of their magnitude, values below 1 in magnitude
+ * share the first bucket.
+ */
+public class FieldStatistics {
+    public static final String INTERVAL_PROPERTY = "fieldstats.interval";
+    public static final String THRESHOLD_PROPERTY_PREFIX = "fieldstats.threshold.";
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final String DEFAULT_THRESHOLD = "30";
+    //magnitudes 0 (below 1) to 64 of non-negative values, followed by the same for negative ones
+    private static final int MAGNITUDES = 65;
+    private static final int BUCKETS = 2 * MAGNITUDES;
+
+    //name and type of every read field
+    private static final SiteDescriptions sites = new SiteDescriptions();
+    private static final int NAME = 0;
+    private static final int TYPE = 1;
+    //guarded by the class lock, parsed thresholds by field type, null for types without one
+    private static final Map<String, Double> thresholds = new HashMap<String, Double>();
+
+    private static final CopyOnWriteArrayList<ThreadCells> allCells = new CopyOnWriteArrayList<ThreadCells>();
+    private static final ThreadLocal<ThreadCells> threadCells = new ThreadLocal<ThreadCells>() {
+        @Override
+        protected ThreadCells initialValue() {
+            ThreadCells cells = new ThreadCells();
+            allCells.add(cells);
+            return cells;
+        }
+    };
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                printSummary(System.out);
+            }
+        });
+
+        String interval = System.getProperty(INTERVAL_PROPERTY);
+        if (interval != null) {
+            startPeriodicSummary(Long.parseLong(interval));
+        }
+    }
+
+    private FieldStatistics() {
+    }
+
+    /**
+     * Reserves ids for the fields read by a class, called from its static initializer.
+     *
+     * @return id of the first field of the class
+     */
+    public static int reserveSites(int count) {
+        return sites.reserve(count);
+    }
+
+    /**
+     * @param descriptions names of consecutive fields and their types, separated by tabs and new lines
+     */
+    public static void describeSites(int firstField, String descriptions) {
+        sites.describe(firstField, descriptions);
+    }
+
+    /**
+     * Records a value of a boolean, char or integral field.
+     */
+    public static void record(long value, int field) {
+        FieldCells cells = threadCells.get().of(field);
+        if (value < cells.min) {
+            cells.min = value;
+        }
+        if (value > cells.max) {
+            cells.max = value;
+        }
+        if (value > cells.longThreshold) {
+            cells.above++;
+        }
+        int magnitude = 64 - Long.numberOfLeadingZeros(value < 0 ? -value : value);
+        cells.buckets[value < 0 ? MAGNITUDES + magnitude : magnitude]++;
+        cells.addMoments(value);
+    }
+
+    /**
+     * Records a value of a float or double field.
+     */
+    public static void record(double value, int field) {
+        FieldCells cells = threadCells.get().of(field);
+        if (value < cells.minValue) {
+            cells.minValue = value;
+        }
+        if (value > cells.maxValue) {
+            cells.maxValue = value;
+        }
+        if (value > cells.doubleThreshold) {
+            cells.above++;
+        }
+        double absolute = Math.abs(value);
+        int magnitude = absolute < 1.0 ? 0 : Math.min(MAGNITUDES - 1, Math.getExponent(absolute) + 1);
+        cells.buckets[value < 0 ? MAGNITUDES + magnitude : magnitude]++;
+        cells.addMoments(value);
+    }
+
+    /**
+     * Prints statistics of every read field, most read first. Fields of the same name read by several classes
+     * are merged. Cells of running threads are read without stopping them, so the latest reads may be missing.
+     */
+    public static synchronized void printSummary(PrintStream output) {
+        Map<String, FieldCells> merged = new LinkedHashMap<String, FieldCells>();
+        int fieldCount = sites.size();
+        for (int field = 0; field < fieldCount; field++) {
+            String name = sites.get(field, NAME) + " " + sites.get(field, TYPE);
+            for (ThreadCells cells : allCells) {
+                FieldCells fieldCells = cells.get(field);
+                if (fieldCells == null || fieldCells.count == 0) {
+                    continue;
+                }
+                FieldCells mergedCells = merged.get(name);
+                if (mergedCells == null) {
+                    mergedCells = new FieldCells(fieldCells.floating, fieldCells.longThreshold, fieldCells.doubleThreshold);
+                    merged.put(name, mergedCells);
+                }
+                mergedCells.add(fieldCells);
+            }
+        }
+        if (merged.isEmpty()) {
+            return;
+        }
+
+        List<Map.Entry<String, FieldCells>> fields = new ArrayList<Map.Entry<String, FieldCells>>(merged.entrySet());
+        Collections.sort(fields, new Comparator<Map.Entry<String, FieldCells>>() {
+            @Override
+            public int compare(Map.Entry<String, FieldCells> first, Map.Entry<String, FieldCells> second) {
+                long firstCount = first.getValue().count;
+                long secondCount = second.getValue().count;
+                return firstCount > secondCount ? -1 : (firstCount == secondCount ? 0 : 1);
+            }
+        });
+
+        output.printf("%-50s %12s %14s %14s %14s %14s %12s%n", "field", "reads", "min", "max", "mean", "stddev",
+                "above limit");
+        for (Map.Entry<String, FieldCells> field : fields) {
+            FieldCells cells = field.getValue();
+            output.printf("%-50s %12d %14s %14s %14.3f %14.3f %12d%n", field.getKey(), cells.count,
+                    cells.floating ? String.valueOf(cells.minValue) : String.valueOf(cells.min),
+                    cells.floating ? String.valueOf(cells.maxValue) : String.valueOf(cells.max),
+                    cells.mean, Math.sqrt(cells.m2 / cells.count), cells.above);
+            output.println("    " + describeBuckets(cells.buckets));
+        }
+        output.flush();
+    }
+
+    private static String describeBuckets(long[] buckets) {
+        StringBuilder description = new StringBuilder();
+        for (int magnitude = MAGNITUDES - 1; magnitude >= 0; magnitude--) {
+            appendBucket(description, buckets[MAGNITUDES + magnitude], magnitude, true);
+        }
+        for (int magnitude = 0; magnitude < MAGNITUDES; magnitude++) {
+            appendBucket(description, buckets[magnitude], magnitude, false);
+        }
+        return description.toString();
+    }
+
+    private static void appendBucket(StringBuilder description, long count, int magnitude, boolean negative) {
+        if (count == 0) {
+            return;
+        }
+        if (description.length() > 0) {
+            description.append("  ");
+        }
+        if (magnitude == 0) {
+            description.append(negative ? "(-1, 0)" : "[0, 1)");
+        } else if (negative) {
+            description.append(String.format("(-%.0f, -%.0f]", Math.pow(2, magnitude), Math.pow(2, magnitude - 1)));
+        } else {
+            description.append(String.format("[%.0f, %.0f)", Math.pow(2, magnitude - 1), Math.pow(2, magnitude)));
+        }
+        description.append(' ').append(count);
+    }
+
+    private static void startPeriodicSummary(final long intervalSeconds) {
+        Thread summaryThread = new Thread("field-statistics-summary") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        TimeUnit.SECONDS.sleep(intervalSeconds);
+                        printSummary(System.out);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        summaryThread.setDaemon(true);
+        summaryThread.start();
+    }
+
+    private static synchronized FieldCells createCells(int field) {
+        String type = sites.get(field, TYPE);
+        boolean floating = type.equals("float") || type.equals("double");
+        Double threshold = threshold(type);
+        if (threshold == null) {
+            return new FieldCells(floating, Long.MAX_VALUE, Double.POSITIVE_INFINITY);
+        }
+        //integral values above a fractional threshold are above its floor as well
+        return new FieldCells(floating, (long) Math.floor(threshold), threshold);
+    }
+
+    /**
+     * Parsed once per type, a malformed threshold must not break the instrumented program.
+     */
+    private static Double threshold(String type) {
+        if (thresholds.containsKey(type)) {
+            return thresholds.get(type);
+        }
+
+        String text = System.getProperty(THRESHOLD_PROPERTY_PREFIX + type,
+                type.equals("char") || type.equals("boolean") ? null : DEFAULT_THRESHOLD);
+        Double threshold = null;
+        if (text != null) {
+            try {
+                threshold = Double.valueOf(text);
+            } catch (NumberFormatException ex) {
+                System.err.printf("Cannot use threshold of %s fields! Reason: %s%n", type, ex);
+            }
+        }
+        thresholds.put(type, threshold);
+        return threshold;
+    }
+
+    /**
+     * Statistics of a field. Only the owner thread writes, so no locking is needed;
+     * readers may see slightly stale values, which is fine for reporting.
+     */
+    private static final class FieldCells {
+        private final boolean floating;
+        private final long longThreshold;
+        private final double doubleThreshold;
+        private final long[] buckets = new long[BUCKETS];
+        private long count;
+        private long above;
+        //bounds of integral values
+        private long min = Long.MAX_VALUE;
+        private long max = Long.MIN_VALUE;
+        //bounds of floating point values
+        private double minValue = Double.POSITIVE_INFINITY;
+        private double maxValue = Double.NEGATIVE_INFINITY;
+        private double mean;
+        private double m2;
+
+        FieldCells(boolean floating, long longThreshold, double doubleThreshold) {
+            this.floating = floating;
+            this.longThreshold = longThreshold;
+            this.doubleThreshold = doubleThreshold;
+        }
+
+        /**
+         * Welford's update of the running mean and the sum of squared differences from it.
+         */
+        void addMoments(double value) {
+            count++;
+            double delta = value - mean;
+            mean += delta / count;
+            m2 += delta * (value - mean);
+        }
+
+        /**
+         * Chan's combination of the moments of two sets of values.
+         */
+        void add(FieldCells other) {
+            long total = count + other.count;
+            double delta = other.mean - mean;
+            m2 += other.m2 + delta * delta * count * other.count / total;
+            mean += delta * other.count / total;
+            count = total;
+            above += other.above;
+            min = Math.min(min, other.min);
+            max = Math.max(max, other.max);
+            minValue = Math.min(minValue, other.minValue);
+            maxValue = Math.max(maxValue, other.maxValue);
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] += other.buckets[i];
+            }
+        }
+    }
+
+    private static final class ThreadCells {
+        private volatile FieldCells[] fields = new FieldCells[INITIAL_CAPACITY];
+
+        FieldCells of(int field) {
+            FieldCells[] current = fields;
+            if (field < current.length && current[field] != null) {
+                return current[field];
+            }
+            if (field >= current.length) {
+                current = Arrays.copyOf(current, Math.max(field + 1, current.length * 2));
+            }
+            current[field] = createCells(field);
+            fields = current;
+            return current[field];
+        }
+
+        FieldCells get(int field) {
+            FieldCells[] current = fields;
+            return field < current.length ? current[field] : null;
+        }
+    }
+}
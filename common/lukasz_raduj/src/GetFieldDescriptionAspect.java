@@ -0,0 +1,289 @@
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.apache.bcel.Constants.INVOKESTATIC;
+import static org.apache.bcel.generic.Type.*;
+
+
+/**
+ * Reports every read of a primitive field: the field and its value, with a warning for numbers greater than 30.
+ * <p>
+ * With {@value #FIELD_STATISTICS_OPTION} nothing is reported per read, values are aggregated by
+ * {@link FieldStatistics} instead: integral ones widened to long and floating point ones to double.
+ */
+public class GetFieldDescriptionAspect implements InstrumentationAspect {
+    public static final String NAME = "getfield-description";
+    public static final String FIELD_STATISTICS_OPTION = "-fieldstats";
+
+    private static final String PRE_GET_FIELD = "Before getfield:";
+    private static final String HIGH_VALUE_WARNING = "    !the value is greater than 30!\n";
+    private static final String EVENT_LOG_CLASS = "EventLog";
+    private static final String STATISTICS_CLASS = "FieldStatistics";
+    private static final String BASE_FIELD_NAME = "fieldStatisticsBase$";
+
+    private final boolean useEventLog;
+    private final boolean useStatistics;
+    private InstrumentedClass instrumentedClass;
+    private ConstantPoolGen constantPoolGen;
+    private InstructionFactory factory;
+    private Method method;
+    private ClassSiteRegistration statisticsFields;
+    //local ids of the fields read by the class, by their name and type
+    private Map<String, Integer> statisticsFieldIds;
+
+    public GetFieldDescriptionAspect(String[] options) {
+        List<String> optionsList = Arrays.asList(options);
+        this.useEventLog = optionsList.contains(InstrumentationEngine.SITE_IDS_OPTION)
+                || optionsList.contains(InstrumentationEngine.EVENT_LOG_OPTION);
+        this.useStatistics = optionsList.contains(FIELD_STATISTICS_OPTION);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void startClass(InstrumentedClass instrumentedClass) {
+        this.instrumentedClass = instrumentedClass;
+        this.constantPoolGen = instrumentedClass.getConstantPool();
+        this.factory = new InstructionFactory(instrumentedClass.getClassGen());
+        this.statisticsFields = new ClassSiteRegistration(instrumentedClass.getClassGen(), STATISTICS_CLASS,
+                BASE_FIELD_NAME);
+        this.statisticsFieldIds = new HashMap<String, Integer>();
+    }
+
+    @Override
+    public boolean startMethod(Method method, MethodRewriter rewriter) {
+        this.method = method;
+        return true;
+    }
+
+    @Override
+    public void visitInstruction(MethodRewriter rewriter, InstructionHandle instructionHandle) {
+        Instruction instruction = instructionHandle.getInstruction();
+
+        //not-get-field instructions are not interesting
+        if (!(instruction instanceof GETFIELD)) {
+            return;
+        }
+        GETFIELD getFieldInstruction = (GETFIELD) instruction;
+
+        Type fieldType = getFieldInstruction.getFieldType(constantPoolGen);
+
+        if (!(fieldType instanceof BasicType)) {
+            return;
+        }
+
+        Type classType = getFieldInstruction.getReferenceType(constantPoolGen);
+        String fieldName = getFieldInstruction.getFieldName(constantPoolGen);
+
+
+        int systemOutField = constantPoolGen.addFieldref("java.lang.System", "out", "Ljava/io/PrintStream;");
+        int printMethod = constantPoolGen.addMethodref("java.io.PrintStream", "print", "(Ljava/lang/String;)V");
+
+        //whole probe is built aside and queued at once, it is spliced before the getfield with a single relinking
+        InstructionList probe = new InstructionList();
+
+        //skipped events jump straight to the getfield, past the description, value and warning alike
+        ProbeSampling sampling = instrumentedClass.getSampling();
+        if (sampling != null) {
+            probe.append(sampling.pushDecision());
+            probe.append(new IFEQ(instructionHandle));
+        }
+
+        if (useStatistics) {
+            addInstructionsForRecordStatistics(probe, instructionHandle, fieldType, classType, fieldName);
+            rewriter.insertBefore(instructionHandle, probe);
+            return;
+        }
+
+        if (useEventLog) {
+            addInstructionsForRecordFieldValue(probe, instructionHandle, fieldType, classType, fieldName);
+        } else {
+            addInstructionsForPrintFieldDescription(probe, fieldType, classType, fieldName, systemOutField, printMethod);
+            addInstructionsForPrintValue(probe, instructionHandle, systemOutField, printMethod, fieldType);
+        }
+
+        if (isNumericType(fieldType)) {
+            addInstructionsForPrintHighValueWarning(probe, instructionHandle, fieldType, systemOutField, printMethod);
+        }
+
+        rewriter.insertBefore(instructionHandle, probe);
+    }
+
+    @Override
+    public void finishMethod(MethodRewriter rewriter) {
+    }
+
+    @Override
+    public void finishClass() {
+        statisticsFields.injectClassRegistration();
+    }
+
+    /**
+     * Passes the value to {@link FieldStatistics} with the id of the field, widened so that no bits are lost.
+     */
+    private void addInstructionsForRecordStatistics(InstructionList probe,
+                                                    InstructionHandle instructionHandle,
+                                                    Type fieldType,
+                                                    Type classType,
+                                                    String fieldName) {
+        String field = classType + "." + fieldName + "\t" + fieldType;
+        Integer localId = statisticsFieldIds.get(field);
+        if (localId == null) {
+            localId = statisticsFields.addSite(field);
+            statisticsFieldIds.put(field, localId);
+        }
+
+        probe.append(new DUP()); //copy reference
+        probe.append(instructionHandle.getInstruction());
+        Type valueType = LONG;
+        if (fieldType == FLOAT || fieldType == DOUBLE) {
+            valueType = DOUBLE;
+            if (fieldType == FLOAT) {
+                probe.append(new F2D());
+            }
+        } else if (fieldType != LONG) {
+            probe.append(new I2L());
+        }
+        probe.append(statisticsFields.pushSiteId(localId));
+        probe.append(factory.createInvoke(STATISTICS_CLASS, "record", VOID, new Type[]{valueType, INT}, INVOKESTATIC));
+    }
+
+    private void addInstructionsForPrintHighValueWarning(InstructionList probe,
+                                                         InstructionHandle instructionHandle,
+                                                         Type fieldType,
+                                                         int systemOutField,
+                                                         int printMethod) {
+        probe.append(new DUP()); //copy reference
+        probe.append(instructionHandle.getInstruction());
+        trimToInt(probe, fieldType);
+        probe.append(new PUSH(constantPoolGen, 30));
+        probe.append(new ISUB());
+
+
+        InstructionHandle printWarning;
+        if (useEventLog) {
+            int recordMethod = constantPoolGen.addMethodref(EVENT_LOG_CLASS, "record",
+                    Type.getMethodSignature(VOID, new Type[]{siteType()}));
+            printWarning = appendSite(probe, instructionHandle, "high value warning", HIGH_VALUE_WARNING);
+            probe.append(new INVOKESTATIC(recordMethod));
+        } else {
+            printWarning = probe.append(new GETSTATIC(systemOutField));
+            probe.append(new PUSH(constantPoolGen, HIGH_VALUE_WARNING));
+            probe.append(new INVOKEVIRTUAL(printMethod));
+        }
+
+        InstructionHandle lastHandle = probe.append(InstructionFactory.NOP);
+
+        IFLE jumpHandle = new IFLE(lastHandle);
+        probe.insert(printWarning, jumpHandle);
+    }
+
+    private void trimToInt(InstructionList probe, Type fieldType) {
+        if (fieldType == LONG) {
+            probe.append(new L2I());
+        } else if (fieldType == FLOAT) {
+            probe.append(new F2I());
+        } else if (fieldType == DOUBLE) {
+            probe.append(new D2I());
+        }
+    }
+
+    private boolean isNumericType(Type fieldType) {
+        return fieldType == Type.INT || fieldType == Type.LONG ||
+                fieldType == Type.FLOAT || fieldType == DOUBLE ||
+                fieldType == Type.BYTE || fieldType == SHORT;
+    }
+
+    private void addInstructionsForPrintFieldDescription(InstructionList probe,
+                                                         Type fieldType,
+                                                         Type classType,
+                                                         String fieldName,
+                                                         int systemOutField,
+                                                         int printMethod) {
+        probe.append(new GETSTATIC(systemOutField));
+        String fieldDescription = buildFieldDescription(fieldType, classType, fieldName);
+        probe.append(new PUSH(constantPoolGen, fieldDescription));
+        probe.append(new INVOKEVIRTUAL(printMethod));
+    }
+
+    private void addInstructionsForPrintValue(InstructionList probe,
+                                              InstructionHandle instructionHandle,
+                                              int systemOutField,
+                                              int printMethod,
+                                              Type fieldType) {
+//        print spaces
+        probe.append(new GETSTATIC(systemOutField));
+        probe.append(new PUSH(constantPoolGen, "    "));
+        probe.append(new INVOKEVIRTUAL(printMethod));
+
+//        print value
+        probe.append(new DUP()); //copy reference
+        probe.append(instructionHandle.getInstruction());
+        probe.append(new GETSTATIC(systemOutField));
+
+        probe.append(ProbeInstructions.swapTopItems(fieldType));
+
+        Type[] argTypes = {ProbeInstructions.toArgumentType(fieldType)};
+        InvokeInstruction valueOfCall1 = factory.createInvoke("java.lang.String", "valueOf", STRING, argTypes, INVOKESTATIC);
+        probe.append(valueOfCall1);
+
+        int printlnMethod = constantPoolGen.addMethodref("java.io.PrintStream", "println", "(Ljava/lang/String;)V");
+
+        probe.append(new INVOKEVIRTUAL(printlnMethod));
+    }
+
+    /**
+     * Records the value together with the field description as a single event, the description is the site.
+     */
+    private void addInstructionsForRecordFieldValue(InstructionList probe,
+                                                    InstructionHandle instructionHandle,
+                                                    Type fieldType,
+                                                    Type classType,
+                                                    String fieldName) {
+        probe.append(new DUP()); //copy reference
+        probe.append(instructionHandle.getInstruction());
+
+        String site = buildFieldDescription(fieldType, classType, fieldName) + "    ";
+        appendSite(probe, instructionHandle, classType + "." + fieldName + ":" + fieldType, site);
+        probe.append(ProbeInstructions.swapTopItems(fieldType));
+
+        Type[] argTypes = {siteType(), ProbeInstructions.toArgumentType(fieldType)};
+        probe.append(factory.createInvoke(EVENT_LOG_CLASS, "record", VOID, argTypes, INVOKESTATIC));
+    }
+
+    /**
+     * Appends push of the site of an event: its text, or its id when sites are described in the sidecar table.
+     */
+    private InstructionHandle appendSite(InstructionList probe,
+                                         InstructionHandle instructionHandle,
+                                         String detail,
+                                         String text) {
+        SiteIdTable siteTable = instrumentedClass.getSiteTable();
+        if (siteTable == null) {
+            return probe.append(new PUSH(constantPoolGen, text));
+        }
+
+        int siteId = siteTable.addSite(method, instructionHandle.getPosition(), detail, text);
+        return probe.append(siteTable.pushSiteId(siteId));
+    }
+
+    private Type siteType() {
+        return instrumentedClass.getSiteTable() != null ? INT : STRING;
+    }
+
+    private String buildFieldDescription(Type fieldType, Type classType, String fieldName) {
+        return String.format(
+                "%s\n" +
+                        "    %s\n" +
+                        "    %s\n" +
+                        "    %s\n", PRE_GET_FIELD, classType.toString(), fieldType.toString(), fieldName);
+    }
+}
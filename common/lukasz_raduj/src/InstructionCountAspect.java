@@ -0,0 +1,231 @@
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+import java.util.*;
+
+
+/**
+ * Counts executed instructions of the class by name, by opcode or by whole basic blocks,
+ * the counters are printed by {@link InstructionsUsageStatistics} when the program exits.
+ * <p>
+ * Counted methods are registered by the static initializer, which keeps the id of the first of them
+ * in a synthetic field, so every probe tells which method executed the instruction.
+ */
+public class InstructionCountAspect implements InstrumentationAspect {
+    public static final String NAME = "instruction-count";
+    public static final String OPCODES_OPTION = "-opcodes";
+    public static final String BLOCKS_OPTION = "-blocks";
+
+    private static final String STATISTICS_CLASS = "InstructionsUsageStatistics";
+    private static final String BASE_FIELD_NAME = "instructionCountBase$";
+
+    private final boolean countByOpcode;
+    private final boolean countByBasicBlocks;
+    private ClassGen classGen;
+    private ConstantPoolGen constantPoolGen;
+    private InstructionFactory factory;
+    //name followed by signature of every method of the class
+    private Set<String> declaredMethods;
+    //invoke classification cached by the constant pool index of the invoked method, null when not resolved yet
+    private Boolean[] declaredByConstantIndex;
+    private ClassSiteRegistration countedMethods;
+    private int methodId;
+
+    public InstructionCountAspect(boolean countByOpcode, boolean countByBasicBlocks) {
+        this.countByOpcode = countByOpcode;
+        this.countByBasicBlocks = countByBasicBlocks;
+    }
+
+    public InstructionCountAspect(String[] options) {
+        List<String> optionsList = Arrays.asList(options);
+        this.countByBasicBlocks = optionsList.contains(BLOCKS_OPTION);
+        this.countByOpcode = countByBasicBlocks || optionsList.contains(OPCODES_OPTION);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void startClass(InstrumentedClass instrumentedClass) {
+        JavaClass clazz = instrumentedClass.getOriginalClass();
+        classGen = instrumentedClass.getClassGen();
+        constantPoolGen = instrumentedClass.getConstantPool();
+        factory = new InstructionFactory(classGen);
+
+        declaredMethods = new HashSet<String>();
+        for (Method method : clazz.getMethods()) {
+            declaredMethods.add(method.getName() + method.getSignature());
+        }
+        declaredByConstantIndex = new Boolean[constantPoolGen.getSize()];
+        countedMethods = new ClassSiteRegistration(classGen, STATISTICS_CLASS, BASE_FIELD_NAME);
+    }
+
+    @Override
+    public boolean startMethod(Method method, MethodRewriter rewriter) {
+        methodId = countedMethods.addSite(classGen.getClassName() + "." + method.getName() + method.getSignature());
+        if (countByBasicBlocks) {
+            insertBasicBlockUsageUpdates(rewriter);
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void visitInstruction(MethodRewriter rewriter, InstructionHandle instructionHandle) {
+        if (isInstructionFromExternalMethod(instructionHandle.getInstruction())) {
+            return;
+        }
+
+        insertMethodUsageUpdate(rewriter, instructionHandle);
+    }
+
+    @Override
+    public void finishMethod(MethodRewriter rewriter) {
+    }
+
+    @Override
+    public void finishClass() {
+        countedMethods.injectClassRegistration();
+    }
+
+    private boolean isInstructionFromExternalMethod(Instruction instruction) {
+        if (!(instruction instanceof InvokeInstruction)) {
+            return false;
+        }
+
+        InvokeInstruction invokeInstruction = (InvokeInstruction) instruction;
+        return !isMethodDeclaredInThisClass(invokeInstruction);
+    }
+
+    private boolean isMethodDeclaredInThisClass(InvokeInstruction invokeInstruction) {
+        //constants added by probes are never invoked by original instructions, but stay out of the cache anyway
+        int index = invokeInstruction.getIndex();
+        if (index < declaredByConstantIndex.length && declaredByConstantIndex[index] != null) {
+            return declaredByConstantIndex[index];
+        }
+
+        boolean declared = invokeInstruction.getReferenceType(constantPoolGen).toString().equals(classGen.getClassName())
+                && declaredMethods.contains(invokeInstruction.getMethodName(constantPoolGen)
+                + invokeInstruction.getSignature(constantPoolGen));
+        if (index < declaredByConstantIndex.length) {
+            declaredByConstantIndex[index] = declared;
+        }
+        return declared;
+    }
+
+    /**
+     * Jumps and exception handlers targeting the instrumented instruction land on its probe,
+     * otherwise the instruction is executed without being counted.
+     */
+    private void insertMethodUsageUpdate(MethodRewriter rewriter, InstructionHandle instructionHandle) {
+        InstructionList probe = countedMethods.pushSiteId(methodId);
+        if (countByOpcode) {
+            probe.append(new PUSH(constantPoolGen, instructionHandle.getInstruction().getOpcode()));
+
+            int incrementOpcodeCounterMethod = constantPoolGen.addMethodref(STATISTICS_CLASS, "registerOpcode", "(II)V");
+            probe.append(new INVOKESTATIC(incrementOpcodeCounterMethod));
+        } else {
+            probe.append(factory.createConstant(instructionHandle.getInstruction().getName()));
+
+            int incrementUsageCounterMethod = constantPoolGen.addMethodref(
+                    STATISTICS_CLASS, "registerUse", "(ILjava/lang/String;)V");
+            probe.append(new INVOKESTATIC(incrementUsageCounterMethod));
+        }
+
+        rewriter.insertBefore(instructionHandle, probe, true);
+    }
+
+    private void insertBasicBlockUsageUpdates(MethodRewriter rewriter) {
+        int incrementBlockCountersMethod = constantPoolGen.addMethodref(
+                STATISTICS_CLASS, "registerBasicBlock", "(ILjava/lang/String;)V");
+
+        for (List<InstructionHandle> basicBlock : splitIntoBasicBlocks(rewriter.getMethodGen())) {
+            String blockCounters = encodeBlockCounters(basicBlock);
+            if (blockCounters.isEmpty()) {
+                continue;
+            }
+
+            InstructionList probe = countedMethods.pushSiteId(methodId);
+            probe.append(new PUSH(constantPoolGen, blockCounters));
+            probe.append(new INVOKESTATIC(incrementBlockCountersMethod));
+            rewriter.insertBefore(basicBlock.get(0), probe, true);
+        }
+    }
+
+    /**
+     * Block starts at the method entry, at every jump target and exception handler, and right after
+     * every instruction that may leave the block. Instructions that can throw, invocations among them, end their
+     * block as well, so that counters stay exact when an exception is caught or leaves the method.
+     */
+    private List<List<InstructionHandle>> splitIntoBasicBlocks(MethodGen methodGenerator) {
+        InstructionList instructionList = methodGenerator.getInstructionList();
+        Set<InstructionHandle> leaders = new HashSet<InstructionHandle>();
+        leaders.add(instructionList.getStart());
+
+        for (CodeExceptionGen exceptionHandler : methodGenerator.getExceptionHandlers()) {
+            leaders.add(exceptionHandler.getStartPC());
+            leaders.add(exceptionHandler.getHandlerPC());
+            leaders.add(exceptionHandler.getEndPC().getNext());
+        }
+
+        for (InstructionHandle handle : instructionList.getInstructionHandles()) {
+            Instruction instruction = handle.getInstruction();
+            if (instruction instanceof BranchInstruction) {
+                leaders.add(((BranchInstruction) instruction).getTarget());
+                if (instruction instanceof Select) {
+                    leaders.addAll(Arrays.asList(((Select) instruction).getTargets()));
+                }
+            }
+
+            if (endsBasicBlock(instruction)) {
+                leaders.add(handle.getNext());
+            }
+        }
+        leaders.remove(null);
+
+        List<List<InstructionHandle>> basicBlocks = new ArrayList<List<InstructionHandle>>();
+        List<InstructionHandle> currentBlock = null;
+        for (InstructionHandle handle : instructionList.getInstructionHandles()) {
+            if (currentBlock == null || leaders.contains(handle)) {
+                currentBlock = new ArrayList<InstructionHandle>();
+                basicBlocks.add(currentBlock);
+            }
+            currentBlock.add(handle);
+        }
+        return basicBlocks;
+    }
+
+    private boolean endsBasicBlock(Instruction instruction) {
+        return instruction instanceof BranchInstruction
+                || instruction instanceof ReturnInstruction
+                || instruction instanceof ExceptionThrower
+                || instruction instanceof RET;
+    }
+
+    /**
+     * Encodes counters of the block as pairs of chars: opcode followed by the number of its occurrences.
+     * Such a string is a plain constant, so the probe is a single LDC and a static call.
+     */
+    private String encodeBlockCounters(List<InstructionHandle> basicBlock) {
+        Map<Short, Integer> opcodeCounters = new TreeMap<Short, Integer>();
+        for (InstructionHandle handle : basicBlock) {
+            Instruction instruction = handle.getInstruction();
+            if (isInstructionFromExternalMethod(instruction)) {
+                continue;
+            }
+
+            Integer counter = opcodeCounters.get(instruction.getOpcode());
+            opcodeCounters.put(instruction.getOpcode(), counter == null ? 1 : counter + 1);
+        }
+
+        StringBuilder encoded = new StringBuilder();
+        for (Map.Entry<Short, Integer> entry : opcodeCounters.entrySet()) {
+            encoded.append((char) entry.getKey().shortValue());
+            encoded.append((char) entry.getValue().intValue());
+        }
+        return encoded.toString();
+    }
+}
@@ -0,0 +1,201 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.ObjectName;
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Makes {@link InstructionsUsageStatistics} visible while the program runs, not only when it exits:
+ * <ul>
+ * <li>as the {@value #OBJECT_NAME} MXBean,</li>
+ * <li>in the Prometheus text format written every interval to the file given by {@value #FILE_PROPERTY},</li>
+ * <li>in the Prometheus text format at {@code http://localhost:<port>/metrics}, with the port given by {@value #PORT_PROPERTY}.</li>
+ * </ul>
+ * Nothing is exported unless one of these properties or {@value #INTERVAL_PROPERTY} is set. The interval
+ * is {@value #INTERVAL_PROPERTY} seconds, 10 by default, and has to be positive. Besides the counts since the last reset
+ * the export holds how many instructions were executed during the last interval.
+ */
+public class InstructionsUsageExporter implements InstructionsUsageMXBean {
+    public static final String OBJECT_NAME = "lukasz_raduj:type=InstructionsUsage";
+    public static final String INTERVAL_PROPERTY = "instructions.export.interval";
+    public static final String FILE_PROPERTY = "instructions.export.file";
+    public static final String PORT_PROPERTY = "instructions.export.port";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TOTAL_METRIC = "instructions_executed_total";
+    private static final String INTERVAL_METRIC = "instructions_executed_last_interval";
+    private static final String DEFAULT_INTERVAL = "10";
+
+    private final File exportFile;
+    private Map<String, Long> lastTotals = Collections.emptyMap();
+    private volatile Map<String, Long> lastIntervalCounts = Collections.emptyMap();
+
+    /**
+     * Called once, when the statistics are initialized. Failing export must not break the instrumented program.
+     */
+    static void start() {
+        String file = System.getProperty(FILE_PROPERTY);
+        String port = System.getProperty(PORT_PROPERTY);
+        String interval = System.getProperty(INTERVAL_PROPERTY);
+        if (file == null && port == null && interval == null) {
+            return;
+        }
+
+        try {
+            long intervalSeconds = Long.parseLong(interval != null ? interval : DEFAULT_INTERVAL);
+            if (intervalSeconds <= 0) {
+                throw new IllegalArgumentException(INTERVAL_PROPERTY + " has to be positive: " + intervalSeconds);
+            }
+            InstructionsUsageExporter exporter = new InstructionsUsageExporter(file != null ? new File(file) : null);
+
+            ManagementFactory.getPlatformMBeanServer().registerMBean(exporter, new ObjectName(OBJECT_NAME));
+            if (port != null) {
+                exporter.startHttpServer(Integer.parseInt(port));
+            }
+            exporter.startPeriodicExport(intervalSeconds);
+        } catch (Exception ex) {
+            System.err.printf("Cannot export instructions usage! Reason: %s%n", ex);
+        }
+    }
+
+    private InstructionsUsageExporter(File exportFile) {
+        this.exportFile = exportFile;
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        return InstructionsUsageStatistics.snapshot();
+    }
+
+    @Override
+    public Map<String, Long> getLastIntervalCounts() {
+        return lastIntervalCounts;
+    }
+
+    @Override
+    public String getPrometheusText() {
+        StringBuilder text = new StringBuilder();
+        appendMetric(text, TOTAL_METRIC, "counter", "Instructions executed since the start or the last reset.",
+                InstructionsUsageStatistics.snapshot());
+        appendMetric(text, INTERVAL_METRIC, "gauge", "Instructions executed during the last export interval.",
+                lastIntervalCounts);
+        return text.toString();
+    }
+
+    @Override
+    public void reset() {
+        InstructionsUsageStatistics.reset();
+    }
+
+    private static void appendMetric(StringBuilder text, String metric, String type, String help, Map<String, Long> counts) {
+        text.append("# HELP ").append(metric).append(' ').append(help).append('\n');
+        text.append("# TYPE ").append(metric).append(' ').append(type).append('\n');
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            text.append(metric).append("{instruction=\"").append(escapeLabel(entry.getKey())).append("\"} ")
+                    .append(entry.getValue()).append('\n');
+        }
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    private void startPeriodicExport(final long intervalSeconds) {
+        Thread exportThread = new Thread("instructions-usage-export") {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        TimeUnit.SECONDS.sleep(intervalSeconds);
+                        export();
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        exportThread.setDaemon(true);
+        exportThread.start();
+    }
+
+    private void export() {
+        //differences of totals, so resets done through the MXBean do not disturb them
+        Map<String, Long> totals = InstructionsUsageStatistics.totals();
+        Map<String, Long> intervalCounts = new TreeMap<String, Long>();
+        for (Map.Entry<String, Long> entry : totals.entrySet()) {
+            Long previous = lastTotals.get(entry.getKey());
+            long occurrences = previous != null ? entry.getValue() - previous : entry.getValue();
+            if (occurrences > 0) {
+                intervalCounts.put(entry.getKey(), occurrences);
+            }
+        }
+        lastTotals = new HashMap<String, Long>(totals);
+        lastIntervalCounts = Collections.unmodifiableMap(intervalCounts);
+
+        if (exportFile != null) {
+            try {
+                writeExportFile();
+            } catch (IOException ex) {
+                System.err.printf("Cannot write %s! Reason: %s%n", exportFile, ex);
+            }
+        }
+    }
+
+    //readers polling the file never see it half written
+    private void writeExportFile() throws IOException {
+        File directory = exportFile.getAbsoluteFile().getParentFile();
+        File temporary = File.createTempFile(exportFile.getName(), ".tmp", directory);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), UTF_8);
+        try {
+            writer.write(getPrometheusText());
+        } finally {
+            writer.close();
+        }
+
+        if (!temporary.renameTo(exportFile)) {
+            exportFile.delete();
+            if (!temporary.renameTo(exportFile)) {
+                temporary.delete();
+                throw new IOException("Cannot replace " + exportFile);
+            }
+        }
+    }
+
+    private void startHttpServer(int port) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getByName("localhost"), port), 0);
+        server.createContext("/metrics", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                byte[] body = getPrometheusText().getBytes(UTF_8);
+                exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+                exchange.sendResponseHeaders(200, body.length);
+                OutputStream output = exchange.getResponseBody();
+                try {
+                    output.write(body);
+                } finally {
+                    output.close();
+                }
+            }
+        });
+        //server threads inherit being a daemon from the thread which starts them, they must not keep the program alive
+        Thread starter = new Thread("instructions-usage-http") {
+            @Override
+            public void run() {
+                server.start();
+            }
+        };
+        starter.setDaemon(true);
+        starter.start();
+    }
+}
@@ -0,0 +1,24 @@
+import java.util.Map;
+
+
+/**
+ * Live view of {@link InstructionsUsageStatistics}, registered as {@value InstructionsUsageExporter#OBJECT_NAME}.
+ */
+public interface InstructionsUsageMXBean {
+    /**
+     * @return occurrences of instructions since the start or the last reset
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return occurrences of instructions during the last export interval, empty when periodic export is off
+     */
+    Map<String, Long> getLastIntervalCounts();
+
+    /**
+     * @return counts in the Prometheus text format
+     */
+    String getPrometheusText();
+
+    void reset();
+}
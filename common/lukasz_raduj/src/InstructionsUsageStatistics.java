@@ -0,0 +1,339 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Runtime of the probes inserted by {@link InstructionCountAspect}. Every counted method is registered by the static
+ * initializer of its class, and probes pass its id along with the instruction. Every thread counts into its own
+ * (method x instruction) matrix with a row per executed method, so counting an opcode is a thread-local lookup and
+ * a single increment. Matrices are merged only when a report is built.
+ * <p>
+ * Instructions are identified by their opcodes, instructions counted by names which are not opcode names
+ * get ids past the opcodes.
+ */
+public class InstructionsUsageStatistics {
+    public static final String TOP_METHODS_PROPERTY = "instructions.top.methods";
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final int OPCODES_COUNT = 256;
+    private static final int DEFAULT_TOP_METHODS = 10;
+    private static final int INSTRUCTIONS_PER_METHOD = 3;
+
+    //indexed by opcode, used to turn opcode counters back into names when the report is printed
+    private static final String[] OPCODE_NAMES = {
+            "nop", "aconst_null", "iconst_m1", "iconst_0", "iconst_1", "iconst_2", "iconst_3", "iconst_4",
+            "iconst_5", "lconst_0", "lconst_1", "fconst_0", "fconst_1", "fconst_2", "dconst_0", "dconst_1",
+            "bipush", "sipush", "ldc", "ldc_w", "ldc2_w", "iload", "lload", "fload", "dload", "aload",
+            "iload_0", "iload_1", "iload_2", "iload_3", "lload_0", "lload_1", "lload_2", "lload_3", "fload_0",
+            "fload_1", "fload_2", "fload_3", "dload_0", "dload_1", "dload_2", "dload_3", "aload_0", "aload_1",
+            "aload_2", "aload_3", "iaload", "laload", "faload", "daload", "aaload", "baload", "caload",
+            "saload", "istore", "lstore", "fstore", "dstore", "astore", "istore_0", "istore_1", "istore_2",
+            "istore_3", "lstore_0", "lstore_1", "lstore_2", "lstore_3", "fstore_0", "fstore_1", "fstore_2",
+            "fstore_3", "dstore_0", "dstore_1", "dstore_2", "dstore_3", "astore_0", "astore_1", "astore_2",
+            "astore_3", "iastore", "lastore", "fastore", "dastore", "aastore", "bastore", "castore", "sastore",
+            "pop", "pop2", "dup", "dup_x1", "dup_x2", "dup2", "dup2_x1", "dup2_x2", "swap", "iadd", "ladd",
+            "fadd", "dadd", "isub", "lsub", "fsub", "dsub", "imul", "lmul", "fmul", "dmul", "idiv", "ldiv",
+            "fdiv", "ddiv", "irem", "lrem", "frem", "drem", "ineg", "lneg", "fneg", "dneg", "ishl", "lshl",
+            "ishr", "lshr", "iushr", "lushr", "iand", "land", "ior", "lor", "ixor", "lxor", "iinc", "i2l",
+            "i2f", "i2d", "l2i", "l2f", "l2d", "f2i", "f2l", "f2d", "d2i", "d2l", "d2f", "i2b", "i2c", "i2s",
+            "lcmp", "fcmpl", "fcmpg", "dcmpl", "dcmpg", "ifeq", "ifne", "iflt", "ifge", "ifgt", "ifle",
+            "if_icmpeq", "if_icmpne", "if_icmplt", "if_icmpge", "if_icmpgt", "if_icmple", "if_acmpeq",
+            "if_acmpne", "goto", "jsr", "ret", "tableswitch", "lookupswitch", "ireturn", "lreturn", "freturn",
+            "dreturn", "areturn", "return", "getstatic", "putstatic", "getfield", "putfield", "invokevirtual",
+            "invokespecial", "invokestatic", "invokeinterface", "invokedynamic", "new", "newarray",
+            "anewarray", "arraylength", "athrow", "checkcast", "instanceof", "monitorenter", "monitorexit",
+            "wide", "multianewarray", "ifnull", "ifnonnull", "goto_w", "jsr_w"
+    };
+
+    private static final ConcurrentMap<String, Integer> instructionIds = new ConcurrentHashMap<String, Integer>();
+    //guarded by the class lock, names of instructions with ids from OPCODES_COUNT on
+    private static final List<String> otherInstructionNames = new ArrayList<String>();
+    //class, name and signature of every counted method
+    private static final SiteDescriptions methods = new SiteDescriptions();
+    private static final int METHOD = 0;
+
+    //every thread counts into its own cells, they are merged only when the report is built
+    private static final CopyOnWriteArrayList<Counters> allCounters = new CopyOnWriteArrayList<Counters>();
+    private static final ThreadLocal<Counters> threadCounters = new ThreadLocal<Counters>() {
+        @Override
+        protected Counters initialValue() {
+            Counters counters = new Counters();
+            allCounters.add(counters);
+            return counters;
+        }
+    };
+
+    //merged counters at the last reset, subtracted from what the counters hold, which are never cleared
+    private static long[][] baseline = new long[0][];
+
+    static {
+        for (int opcode = 0; opcode < OPCODE_NAMES.length; opcode++) {
+            instructionIds.put(OPCODE_NAMES[opcode], opcode);
+        }
+        InstructionsUsageExporter.start();
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                printInstructionsUsage();
+            }
+        });
+    }
+
+    /**
+     * Reserves ids for the counted methods of a class, called from its static initializer.
+     *
+     * @return id of the first method of the class
+     */
+    public static int reserveSites(int count) {
+        return methods.reserve(count);
+    }
+
+    /**
+     * @param descriptions classes, names and signatures of consecutive methods, separated by new lines
+     */
+    public static void describeSites(int firstMethod, String descriptions) {
+        methods.describe(firstMethod, descriptions);
+    }
+
+    public static void registerUse(int method, String instruction) {
+        Integer instructionId = instructionIds.get(instruction);
+        if (instructionId == null) {
+            instructionId = registerInstruction(instruction);
+        }
+        threadCounters.get().increment(method, instructionId);
+    }
+
+    public static void registerOpcode(int method, int opcode) {
+        threadCounters.get().row(method)[opcode]++;
+    }
+
+    /**
+     * @param opcodeCounters pairs of chars: opcode and how many times it occurs in the basic block
+     */
+    public static void registerBasicBlock(int method, String opcodeCounters) {
+        long[] opcodeCells = threadCounters.get().row(method);
+        for (int i = 0; i < opcodeCounters.length(); i += 2) {
+            opcodeCells[opcodeCounters.charAt(i)] += opcodeCounters.charAt(i + 1);
+        }
+    }
+
+    private static synchronized int registerInstruction(String instruction) {
+        Integer existingId = instructionIds.get(instruction);
+        if (existingId != null) {
+            return existingId;
+        }
+        int newId = OPCODES_COUNT + otherInstructionNames.size();
+        otherInstructionNames.add(instruction);
+        instructionIds.put(instruction, newId);
+        return newId;
+    }
+
+    /**
+     * Report printed at exit, of everything counted since the start: resets only move the baseline
+     * of the MXBean and the exporter, they do not discard what was executed.
+     */
+    private static synchronized void printInstructionsUsage() {
+        long[][] counters = mergedCounters();
+        for (Map.Entry<String, Long> entry : countsByInstruction(counters).entrySet()) {
+            String instruction = entry.getKey();
+            Long occurrences = entry.getValue();
+            if (occurrences >= 5) {
+                System.out.printf("%s    %s%n", instruction.toUpperCase(), occurrences.toString());
+            }
+        }
+
+        int topMethods = Integer.getInteger(TOP_METHODS_PROPERTY, DEFAULT_TOP_METHODS);
+        if (topMethods > 0) {
+            printTopMethods(System.out, topMethods, counters);
+        }
+    }
+
+    /**
+     * Prints methods which executed the most instructions since the start or the last {@link #reset()},
+     * together with the instructions they executed the most. Nothing is printed when no method was counted.
+     */
+    public static synchronized void printTopMethods(PrintStream output, int limit) {
+        printTopMethods(output, limit, sinceReset());
+    }
+
+    private static void printTopMethods(PrintStream output, int limit, long[][] counters) {
+        final long[] methodTotals = new long[counters.length];
+        List<Integer> executed = new ArrayList<Integer>();
+        for (int method = 0; method < counters.length; method++) {
+            for (long occurrences : counters[method]) {
+                methodTotals[method] += occurrences;
+            }
+            if (methodTotals[method] > 0) {
+                executed.add(method);
+            }
+        }
+        if (executed.isEmpty()) {
+            return;
+        }
+
+        Collections.sort(executed, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                long firstTotal = methodTotals[first];
+                long secondTotal = methodTotals[second];
+                return firstTotal > secondTotal ? -1 : (firstTotal == secondTotal ? 0 : 1);
+            }
+        });
+
+        output.printf("%n%-60s %14s  %s%n", "method", "instructions", "most executed");
+        for (Integer method : executed.subList(0, Math.min(limit, executed.size()))) {
+            output.printf("%-60s %14d  %s%n", methods.get(method, METHOD), methodTotals[method],
+                    describeMostExecuted(counters[method], methodTotals[method]));
+        }
+        output.flush();
+    }
+
+    private static String describeMostExecuted(long[] row, long methodTotal) {
+        long[] remaining = row.clone();
+        StringBuilder description = new StringBuilder();
+        for (int i = 0; i < INSTRUCTIONS_PER_METHOD; i++) {
+            int mostExecuted = 0;
+            for (int instruction = 1; instruction < remaining.length; instruction++) {
+                if (remaining[instruction] > remaining[mostExecuted]) {
+                    mostExecuted = instruction;
+                }
+            }
+            if (remaining[mostExecuted] == 0) {
+                break;
+            }
+            description.append(i > 0 ? ", " : "").append(instructionName(mostExecuted).toUpperCase())
+                    .append(' ').append(remaining[mostExecuted] * 100 / methodTotal).append('%');
+            remaining[mostExecuted] = 0;
+        }
+        return description.toString();
+    }
+
+    /**
+     * @return occurrences of instructions since the start or the last {@link #reset()}
+     */
+    public static synchronized Map<String, Long> snapshot() {
+        return countsByInstruction(sinceReset());
+    }
+
+    /**
+     * Starts counting from zero. Threads keep counting meanwhile, their counters are left untouched.
+     */
+    public static synchronized void reset() {
+        baseline = mergedCounters();
+    }
+
+    /**
+     * Occurrences since the start, regardless of resets. Computed from counters of running threads without
+     * stopping them, so concurrent increments may or may not be included.
+     */
+    static synchronized Map<String, Long> totals() {
+        return countsByInstruction(mergedCounters());
+    }
+
+    private static Map<String, Long> countsByInstruction(long[][] counters) {
+        Map<String, Long> merged = new TreeMap<String, Long>();
+        for (long[] row : counters) {
+            for (int instruction = 0; instruction < row.length; instruction++) {
+                if (row[instruction] > 0) {
+                    String name = instructionName(instruction);
+                    Long counted = merged.get(name);
+                    merged.put(name, counted != null ? counted + row[instruction] : row[instruction]);
+                }
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * @return merged counters less the baseline, indexed by method and instruction
+     */
+    private static long[][] sinceReset() {
+        long[][] counters = mergedCounters();
+        for (int method = 0; method < baseline.length; method++) {
+            for (int instruction = 0; instruction < baseline[method].length; instruction++) {
+                counters[method][instruction] -= baseline[method][instruction];
+            }
+        }
+        return counters;
+    }
+
+    /**
+     * Every row has a cell for every instruction known so far, so rows of later merges are never shorter.
+     */
+    private static long[][] mergedCounters() {
+        long[][] merged = new long[methods.size()][];
+        int instructionsCount = OPCODES_COUNT + otherInstructionNames.size();
+        for (int method = 0; method < merged.length; method++) {
+            merged[method] = new long[instructionsCount];
+        }
+
+        for (Counters counters : allCounters) {
+            long[][] rows = counters.rows;
+            for (int method = 0; method < Math.min(rows.length, merged.length); method++) {
+                long[] row = rows[method];
+                int length = row != null ? Math.min(row.length, merged[method].length) : 0;
+                for (int instruction = 0; instruction < length; instruction++) {
+                    merged[method][instruction] += row[instruction];
+                }
+            }
+        }
+        return merged;
+    }
+
+    private static String instructionName(int instruction) {
+        if (instruction >= OPCODES_COUNT) {
+            return otherInstructionNames.get(instruction - OPCODES_COUNT);
+        }
+        return instruction < OPCODE_NAMES.length ? OPCODE_NAMES[instruction] : "opcode_" + instruction;
+    }
+
+    /**
+     * Counter cells owned by a single thread, a row per method. Only the owner writes, so no locking is needed;
+     * readers may see slightly stale values, which is fine for reporting.
+     */
+    private static final class Counters {
+        private volatile long[][] rows = new long[INITIAL_CAPACITY][];
+
+        /**
+         * @return row of the method, long enough for every opcode
+         */
+        long[] row(int method) {
+            long[][] current = rows;
+            if (method < current.length) {
+                long[] row = current[method];
+                if (row != null) {
+                    return row;
+                }
+            }
+            return growRow(method, OPCODES_COUNT);
+        }
+
+        void increment(int method, int instruction) {
+            long[] row = row(method);
+            if (instruction >= row.length) {
+                row = growRow(method, instruction + 1);
+            }
+            row[instruction]++;
+        }
+
+        private long[] growRow(int method, int length) {
+            long[][] current = rows;
+            if (method >= current.length) {
+                current = Arrays.copyOf(current, Math.max(method + 1, current.length * 2));
+            }
+            long[] row = current[method];
+            current[method] = row == null ? new long[length] : Arrays.copyOf(row, Math.max(length, row.length * 2));
+            rows = current;
+            return current[method];
+        }
+    }
+}
@@ -0,0 +1,40 @@
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.InstructionHandle;
+
+
+/**
+ * Instrumentation applied by {@link InstrumentationEngine}. The engine parses the class once and walks the original
+ * instructions of every method once, all enabled aspects queue their probes to the {@link MethodRewriter} of the method
+ * during that walk. The method is rewritten once the walk is finished.
+ * <p>
+ * Aspects keep per-class and per-method state in fields, so like transformers they must not be shared between threads.
+ */
+public interface InstrumentationAspect {
+
+    /**
+     * Name marking instrumented classes, see {@link InstrumentationMarker}. Classes already marked are skipped.
+     */
+    String getName();
+
+    void startClass(InstrumentedClass instrumentedClass);
+
+    /**
+     * Called for every method with code selected by the {@link MethodFilter}, before its instructions are visited.
+     * Probes queued here are kept whatever the method returns.
+     *
+     * @return false to skip visiting the instructions of the method and finishing it
+     */
+    boolean startMethod(Method method, MethodRewriter rewriter);
+
+    /**
+     * Called for every original instruction of the method, probes queued by any aspect are not visited.
+     */
+    void visitInstruction(MethodRewriter rewriter, InstructionHandle instructionHandle);
+
+    void finishMethod(MethodRewriter rewriter);
+
+    /**
+     * Called once all methods are instrumented, e.g. to add fields or initialization the probes need.
+     */
+    void finishClass();
+}
@@ -0,0 +1,334 @@
+import org.apache.bcel.classfile.ClassParser;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.InstructionHandle;
+import org.apache.bcel.generic.MethodGen;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Applies any number of {@link InstrumentationAspect}s to a class in a single parse, instruction walk and write,
+ * so instrumenting with several aspects costs about as much as with one.
+ * <p>
+ * Used directly, the aspects are chosen with {@code -aspects=name+name...}, e.g. through the agent with
+ * {@code transformer=InstrumentationEngine;options=-aspects=invoke-around+instruction-count,-opcodes}.
+ * The {@code Transform} tools of the labs are engines with their single aspect.
+ * <p>
+ * Methods are selected for all aspects at once by {@link MethodFilter} rules, methods it leaves out stay untouched.
+ * With {@value #SWITCHABLE_OPTION} probes are guarded by flags of {@link ProbeSwitches}, one per aspect.
+ */
+public class InstrumentationEngine implements BytecodeTransformer, SiteTableProducer {
+    public static final String ASPECTS_OPTION = "-aspects=";
+    public static final String EVENT_LOG_OPTION = "-eventlog";
+    public static final String SITE_IDS_OPTION = "-siteids";
+    public static final String SWITCHABLE_OPTION = "-switchable";
+    public static final String CACHE_OPTION = "-cache=";
+
+    private final List<InstrumentationAspect> aspects;
+    private final boolean useSiteIds;
+    private final ProbeSampling sampling;
+    private final MethodFilter methodFilter;
+    //flags guarding probes of the aspects, empty when probes are not switchable
+    private final Map<InstrumentationAspect, String> guardFlags = new IdentityHashMap<InstrumentationAspect, String>();
+    private ClassGen classGen;
+    private SiteIdTable siteTable;
+
+    public static void main(String[] args) {
+        transformClassFile(InstrumentationEngine.class.getName(), args);
+    }
+
+    /**
+     * Command line of the engine and its subclasses: options followed by the .class file, which is overwritten.
+     * The cache directory is a tool option, not one of the engine.
+     */
+    protected static void transformClassFile(String engineClassName, String[] args) {
+        try {
+            if (args.length < 1 || !args[args.length - 1].endsWith(".class")) {
+                printUsage(engineClassName);
+                System.exit(1);
+            }
+
+            List<String> options = new ArrayList<String>();
+            File cacheDirectory = null;
+            for (String option : Arrays.copyOf(args, args.length - 1)) {
+                if (option.startsWith(CACHE_OPTION)) {
+                    cacheDirectory = new File(option.substring(CACHE_OPTION.length()));
+                } else {
+                    options.add(option);
+                }
+            }
+            String[] engineOptions = options.toArray(new String[options.size()]);
+            String className = args[args.length - 1].replace(".class", "");
+            BytecodeTransformer transformer = BytecodeTransformers.perThread(engineClassName, engineOptions).get();
+            InstrumentationEngine engine = (InstrumentationEngine) transformer;
+            TransformCache cache = cacheDirectory != null
+                    ? new TransformCache(cacheDirectory, TransformCache.fingerprint(engine, engineOptions)) : null;
+            engine.transformAndSave(className, cache);
+        } catch (Exception ex) {
+            System.out.printf("Cannot transform .class file! Reason: %s%n", ex);
+        }
+    }
+
+    private static void printUsage(String engineClassName) {
+        System.out.println("Usage: " + engineClassName + " [options] <.class file>");
+        System.out.println("    " + ASPECTS_OPTION + "a+b       aspects to apply, when not implied by the tool: "
+                + "invoke-around, getfield-description, instruction-count, method-timing, call-edges, allocation-sites, monitor-contention");
+        System.out.println("    " + EVENT_LOG_OPTION + "         record binary events to the event log instead of printing them");
+        System.out.println("    " + SITE_IDS_OPTION + "          identify sites by int ids described in a sidecar .sites table (implies " + EVENT_LOG_OPTION + ")");
+        System.out.println("    " + InvokeAroundAspect.IDENTITIES_OPTION + "       record returned references by type and identity hash instead of their text (implies " + EVENT_LOG_OPTION + ")");
+        System.out.println("    " + ProbeSampling.SAMPLE_OPTION + "N        report the first and then every N-th event of a site");
+        System.out.println("    " + ProbeSampling.RATE_LIMIT_OPTION + "N     report at most N events of a site per second");
+        System.out.println("    " + InstructionCountAspect.OPCODES_OPTION + "          count instructions by opcode in a primitive table instead of by name");
+        System.out.println("    " + InstructionCountAspect.BLOCKS_OPTION + "           count whole basic blocks with one probe each (implies " + InstructionCountAspect.OPCODES_OPTION + ")");
+        System.out.println("    " + GetFieldDescriptionAspect.FIELD_STATISTICS_OPTION + "       aggregate read field values into per-field statistics reported periodically and at exit");
+        System.out.println("    " + SWITCHABLE_OPTION + "       guard probes with flags switched at runtime through the ProbeSwitches MXBean");
+        System.out.println("    " + MethodFilter.INCLUDE_OPTION + "glob    instrument methods matching class.method or class.method(signature) globs, * stops at dots, ** does not");
+        System.out.println("    " + MethodFilter.EXCLUDE_OPTION + "glob    leave out matching methods, the last matching rule decides");
+        System.out.println("    " + MethodFilter.MIN_SIZE_OPTION + "N       leave out methods with less than N bytes of code");
+        System.out.println("    " + MethodFilter.HOT_METHODS_OPTION + "file instrument only methods listed at line starts of the file, e.g. a report of a previous run");
+        System.out.println("    " + CACHE_OPTION + "dir      keep transformed classes in the directory and reuse them for unchanged class files");
+    }
+
+    /**
+     * Engine with the aspects named by the {@value #ASPECTS_OPTION} option.
+     */
+    public InstrumentationEngine(String[] options) {
+        this(options, createAspects(options));
+    }
+
+    protected InstrumentationEngine(String[] options, InstrumentationAspect... aspects) {
+        this(options, Arrays.asList(aspects));
+    }
+
+    private InstrumentationEngine(String[] options, List<InstrumentationAspect> aspects) {
+        this.aspects = Collections.unmodifiableList(new ArrayList<InstrumentationAspect>(aspects));
+        this.useSiteIds = Arrays.asList(options).contains(SITE_IDS_OPTION);
+        this.sampling = ProbeSampling.fromOptions(options);
+        this.methodFilter = new MethodFilter(options);
+        if (Arrays.asList(options).contains(SWITCHABLE_OPTION)) {
+            for (InstrumentationAspect aspect : this.aspects) {
+                guardFlags.put(aspect, ProbeSwitchNames.flagName(aspect.getName()));
+            }
+        }
+    }
+
+    private static List<InstrumentationAspect> createAspects(String[] options) {
+        List<InstrumentationAspect> aspects = new ArrayList<InstrumentationAspect>();
+        for (String option : options) {
+            if (!option.startsWith(ASPECTS_OPTION)) {
+                continue;
+            }
+            for (String name : option.substring(ASPECTS_OPTION.length()).split("\\+")) {
+                aspects.add(createAspect(name, options));
+            }
+        }
+        if (aspects.isEmpty()) {
+            throw new IllegalArgumentException("No aspect given with " + ASPECTS_OPTION);
+        }
+        return aspects;
+    }
+
+    private static InstrumentationAspect createAspect(String name, String[] options) {
+        if (name.equals(InvokeAroundAspect.NAME)) {
+            return new InvokeAroundAspect(options);
+        } else if (name.equals(GetFieldDescriptionAspect.NAME)) {
+            return new GetFieldDescriptionAspect(options);
+        } else if (name.equals(InstructionCountAspect.NAME)) {
+            return new InstructionCountAspect(options);
+        } else if (name.equals(MethodTimingAspect.NAME)) {
+            return new MethodTimingAspect();
+        } else if (name.equals(CallEdgeAspect.NAME)) {
+            return new CallEdgeAspect();
+        } else if (name.equals(AllocationSiteAspect.NAME)) {
+            return new AllocationSiteAspect();
+        } else if (name.equals(MonitorContentionAspect.NAME)) {
+            return new MonitorContentionAspect();
+        }
+        throw new IllegalArgumentException("Unknown aspect: " + name);
+    }
+
+    public List<InstrumentationAspect> getAspects() {
+        return aspects;
+    }
+
+    public MethodFilter getMethodFilter() {
+        return methodFilter;
+    }
+
+    /**
+     * Transforms the class found in a directory of the class path and overwrites its class file.
+     */
+    public void transformAndSave(String className) throws IOException, ClassNotFoundException {
+        transformAndSave(className, null);
+    }
+
+    /**
+     * Like {@link #transformAndSave(String)}, taking the transformed class and its site table from the cache
+     * when it has them for the class file, and storing them there otherwise.
+     *
+     * @param cache cache made for this engine and its options, or null
+     */
+    public void transformAndSave(String className, TransformCache cache) throws IOException, ClassNotFoundException {
+        ClassSource classSource = ClassSource.fromClassPath();
+        try {
+            File classFile = classSource.findClassFile(className);
+            if (classFile == null) {
+                throw new ClassNotFoundException("No class file of " + className + " in a directory of the class path");
+            }
+            byte[] classBytes = classSource.readClass(className);
+            byte[] transformedBytes = cache != null ? cache.get(classBytes) : null;
+            byte[] siteTableBytes;
+            if (transformedBytes != null) {
+                siteTableBytes = cache.getSiteTable(classBytes);
+            } else {
+                transformedBytes = transform(classBytes);
+                siteTableBytes = siteTable != null && !siteTable.isEmpty() ? siteTable.toBytes() : null;
+                if (cache != null) {
+                    //site table goes first, a class found in the cache always has its table there
+                    if (siteTableBytes != null) {
+                        cache.putSiteTable(classBytes, siteTableBytes);
+                    }
+                    cache.put(classBytes, transformedBytes);
+                }
+            }
+            saveClassFile(classFile, transformedBytes, siteTableBytes);
+        } finally {
+            classSource.close();
+        }
+    }
+
+    @Override
+    public byte[] transform(byte[] classBytes) throws IOException {
+        try {
+            transform(new ClassParser(new ByteArrayInputStream(classBytes), null).parse());
+            return classGen.getJavaClass().getBytes();
+        } finally {
+            //the class is not needed once written, an engine kept by a thread must not hold on to it
+            classGen = null;
+        }
+    }
+
+    @Override
+    public String getAspectName() {
+        StringBuilder names = new StringBuilder();
+        for (InstrumentationAspect aspect : aspects) {
+            names.append(names.length() > 0 ? "+" : "").append(aspect.getName());
+        }
+        return names.toString();
+    }
+
+    @Override
+    public SiteIdTable getSiteTable() {
+        return siteTable;
+    }
+
+    private void transform(JavaClass javaClass) {
+        classGen = new ClassGen(javaClass);
+        siteTable = null;
+
+        List<InstrumentationAspect> classAspects = new ArrayList<InstrumentationAspect>();
+        for (InstrumentationAspect aspect : aspects) {
+            if (!InstrumentationMarker.isMarked(javaClass, aspect.getName())) {
+                classAspects.add(aspect);
+            }
+        }
+        if (classAspects.isEmpty()) {
+            return;
+        }
+
+        if (useSiteIds) {
+            siteTable = new SiteIdTable(classGen);
+        }
+        if (sampling != null) {
+            sampling.startClass(classGen);
+        }
+        InstrumentedClass instrumentedClass = new InstrumentedClass(javaClass, classGen, siteTable, sampling);
+        for (InstrumentationAspect aspect : classAspects) {
+            aspect.startClass(instrumentedClass);
+        }
+
+        for (Method method : javaClass.getMethods()) {
+            instrumentMethod(method, classAspects);
+        }
+
+        for (InstrumentationAspect aspect : classAspects) {
+            aspect.finishClass();
+        }
+        if (siteTable != null && !siteTable.isEmpty()) {
+            siteTable.injectClassRegistration();
+        }
+        if (sampling != null) {
+            sampling.finishClass();
+        }
+
+        for (InstrumentationAspect aspect : classAspects) {
+            InstrumentationMarker.mark(classGen, aspect.getName());
+        }
+    }
+
+    private void instrumentMethod(Method method, List<InstrumentationAspect> classAspects) {
+        //abstract and native methods have no code to instrument
+        if (method.getCode() == null || !methodFilter.accepts(classGen.getClassName(), method)) {
+            return;
+        }
+
+        MethodGen methodGen = new MethodGen(method, classGen.getClassName(), classGen.getConstantPool());
+        MethodRewriter rewriter = new MethodRewriter(methodGen);
+
+        List<InstrumentationAspect> methodAspects = new ArrayList<InstrumentationAspect>();
+        for (InstrumentationAspect aspect : classAspects) {
+            rewriter.setGuard(guardFlags.get(aspect));
+            if (aspect.startMethod(method, rewriter)) {
+                methodAspects.add(aspect);
+            }
+        }
+
+        //probes are only queued, so the list holds the original instructions until the rewrite
+        for (InstructionHandle instructionHandle = methodGen.getInstructionList().getStart();
+             instructionHandle != null; instructionHandle = instructionHandle.getNext()) {
+            for (InstrumentationAspect aspect : methodAspects) {
+                rewriter.setGuard(guardFlags.get(aspect));
+                aspect.visitInstruction(rewriter, instructionHandle);
+            }
+        }
+        for (InstrumentationAspect aspect : methodAspects) {
+            rewriter.setGuard(guardFlags.get(aspect));
+            aspect.finishMethod(rewriter);
+        }
+
+        rewriter.rewrite();
+        classGen.replaceMethod(method, methodGen.getMethod());
+    }
+
+    private static void saveClassFile(File classFile, byte[] classBytes, byte[] siteTableBytes) throws IOException {
+        String path = classFile.getPath();
+        OutputStream output = new FileOutputStream(classFile);
+        try {
+            output.write(classBytes);
+        } finally {
+            output.close();
+        }
+
+        if (siteTableBytes != null) {
+            String sitesPath = path.substring(0, path.length() - ".class".length()) + SiteIdTable.FILE_SUFFIX;
+            OutputStream sitesFile = new FileOutputStream(sitesPath);
+            try {
+                sitesFile.write(siteTableBytes);
+            } finally {
+                sitesFile.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,41 @@
+import org.apache.bcel.classfile.Attribute;
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.classfile.Unknown;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+
+import java.nio.charset.Charset;
+
+
+/**
+ * Marks instrumented classes with a class attribute holding the aspect name, so that the same aspect
+ * is never applied twice. The JVM ignores attributes it does not know.
+ */
+public class InstrumentationMarker {
+    private static final String ATTRIBUTE_NAME = "lukasz_raduj.Instrumented";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private InstrumentationMarker() {
+    }
+
+    public static boolean isMarked(JavaClass javaClass, String aspectName) {
+        for (Attribute attribute : javaClass.getAttributes()) {
+            if (!(attribute instanceof Unknown)) {
+                continue;
+            }
+
+            Unknown unknown = (Unknown) attribute;
+            if (ATTRIBUTE_NAME.equals(unknown.getName()) && aspectName.equals(new String(unknown.getBytes(), UTF_8))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public static void mark(ClassGen classGen, String aspectName) {
+        ConstantPoolGen constantPoolGen = classGen.getConstantPool();
+        int nameIndex = constantPoolGen.addUtf8(ATTRIBUTE_NAME);
+        byte[] value = aspectName.getBytes(UTF_8);
+        classGen.addAttribute(new Unknown(nameIndex, value.length, value, constantPoolGen.getConstantPool()));
+    }
+}
@@ -0,0 +1,48 @@
+import org.apache.bcel.classfile.JavaClass;
+import org.apache.bcel.generic.ClassGen;
+import org.apache.bcel.generic.ConstantPoolGen;
+
+
+/**
+ * Class being instrumented by {@link InstrumentationEngine}, together with the probe state shared by all aspects:
+ * a class can have a single site table and a single range of sampled sites whichever aspects add the sites.
+ */
+public class InstrumentedClass {
+    private final JavaClass originalClass;
+    private final ClassGen classGen;
+    private final SiteIdTable siteTable;
+    private final ProbeSampling sampling;
+
+    public InstrumentedClass(JavaClass originalClass, ClassGen classGen, SiteIdTable siteTable, ProbeSampling sampling) {
+        this.originalClass = originalClass;
+        this.classGen = classGen;
+        this.siteTable = siteTable;
+        this.sampling = sampling;
+    }
+
+    public JavaClass getOriginalClass() {
+        return originalClass;
+    }
+
+    public ClassGen getClassGen() {
+        return classGen;
+    }
+
+    public ConstantPoolGen getConstantPool() {
+        return classGen.getConstantPool();
+    }
+
+    /**
+     * @return table describing event log sites, or null when probes push the text of their sites
+     */
+    public SiteIdTable getSiteTable() {
+        return siteTable;
+    }
+
+    /**
+     * @return sampling of probes, or null when probes report every event
+     */
+    public ProbeSampling getSampling() {
+        return sampling;
+    }
+}
@@ -0,0 +1,218 @@
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.apache.bcel.Constants.INVOKESTATIC;
+import static org.apache.bcel.generic.Type.*;
+
+
+/**
+ * Reports every invocation of a non-void method: the invoked method before the call and the returned value after it.
+ */
+public class InvokeAroundAspect implements InstrumentationAspect {
+    public static final String NAME = "invoke-around";
+    public static final String IDENTITIES_OPTION = "-identities";
+
+    private static final String PRE_INVOKE_MESSAGE = "Method to be called: ";
+    private static final String POST_INVOKE_MESSAGE = "Got result: ";
+    private static final String EVENT_LOG_CLASS = "EventLog";
+
+    private final boolean useEventLog;
+    private final boolean recordIdentities;
+    private InstrumentedClass instrumentedClass;
+    private ConstantPoolGen constantPoolGen;
+    private InstructionFactory instructionFactory;
+    private Method method;
+    private int samplingDecision;
+    private boolean sampled;
+
+    public InvokeAroundAspect(String[] options) {
+        List<String> optionsList = Arrays.asList(options);
+        this.recordIdentities = optionsList.contains(IDENTITIES_OPTION);
+        this.useEventLog = recordIdentities || optionsList.contains(InstrumentationEngine.SITE_IDS_OPTION)
+                || optionsList.contains(InstrumentationEngine.EVENT_LOG_OPTION);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void startClass(InstrumentedClass instrumentedClass) {
+        this.instrumentedClass = instrumentedClass;
+        this.constantPoolGen = instrumentedClass.getConstantPool();
+        this.instructionFactory = new InstructionFactory(instrumentedClass.getClassGen());
+    }
+
+    @Override
+    public boolean startMethod(Method method, MethodRewriter rewriter) {
+        this.method = method;
+        this.sampled = false;
+        return true;
+    }
+
+    @Override
+    public void visitInstruction(MethodRewriter rewriter, InstructionHandle instructionHandle) {
+        Instruction instruction = instructionHandle.getInstruction();
+
+        //not-invoke instructions are not interesting
+        if (!(instruction instanceof InvokeInstruction)) {
+            return;
+        }
+        InvokeInstruction invokeInstruction = (InvokeInstruction) instruction;
+
+        Type returnedType = invokeInstruction.getReturnType(constantPoolGen);
+        //methods returning void are also not interesting
+        if (returnedType == VOID) {
+            return;
+        }
+
+        ProbeSampling sampling = instrumentedClass.getSampling();
+        int offset = instructionHandle.getPosition();
+        InstructionList preInvocationInstructions = buildPreInvokeInstructions(invokeInstruction, offset);
+        if (sampling != null) {
+            if (!sampled) {
+                //both probes of an invocation are reported or skipped together, as the pre-invoke one decides
+                samplingDecision = ProbeInstructions.allocateLocal(rewriter.getMethodGen(), INT);
+                sampled = true;
+            }
+            InstructionList sampledPreInvocation = sampling.pushDecision();
+            sampledPreInvocation.append(new ISTORE(samplingDecision));
+            sampledPreInvocation.append(new ILOAD(samplingDecision));
+            sampledPreInvocation.append(new IFEQ(instructionHandle));
+            sampledPreInvocation.append(preInvocationInstructions);
+            preInvocationInstructions = sampledPreInvocation;
+        }
+        rewriter.insertBefore(instructionHandle, preInvocationInstructions);
+
+        InstructionList returnedValueDescription = buildPostInvokeInstructions(invokeInstruction, returnedType, offset);
+        if (sampling != null) {
+            InstructionList sampledReturnedValue = new InstructionList();
+            sampledReturnedValue.append(new ILOAD(samplingDecision));
+            InstructionHandle afterReturnedValue = returnedValueDescription.append(InstructionConstants.NOP);
+            sampledReturnedValue.append(new IFEQ(afterReturnedValue));
+            sampledReturnedValue.append(returnedValueDescription);
+            returnedValueDescription = sampledReturnedValue;
+        }
+        rewriter.insertAfter(instructionHandle, returnedValueDescription);
+    }
+
+    @Override
+    public void finishMethod(MethodRewriter rewriter) {
+        if (sampled) {
+            //branches may reach an invocation without passing its pre-invoke probe, so the decision needs a value
+            InstructionList initialization = new InstructionList();
+            initialization.append(InstructionConstants.ICONST_0);
+            initialization.append(new ISTORE(samplingDecision));
+            rewriter.insertAtEntry(initialization);
+        }
+    }
+
+    @Override
+    public void finishClass() {
+    }
+
+    private InstructionList buildPreInvokeInstructions(InvokeInstruction invokeInstruction, int offset) {
+        String methodDescription = buildPreInvokeMessage(invokeInstruction);
+        if (useEventLog) {
+            InstructionList instructionList = new InstructionList();
+            instructionList.append(pushSite(offset, invokeInstruction, methodDescription + "\n"));
+            instructionList.append(instructionFactory.createInvoke(EVENT_LOG_CLASS, "record", VOID,
+                    new Type[]{siteType()}, INVOKESTATIC));
+            return instructionList;
+        }
+        return instructionFactory.createPrintln(methodDescription);
+    }
+
+    private String buildPreInvokeMessage(InvokeInstruction instruction) {
+        String methodName = instruction.getMethodName(constantPoolGen);
+        String signature = instruction.getSignature(constantPoolGen);
+
+        return String.format("%s%s%s", PRE_INVOKE_MESSAGE, methodName, signature);
+    }
+
+    private InstructionList buildPostInvokeInstructions(InvokeInstruction invokeInstruction, Type returnType, int offset) {
+        if (useEventLog) {
+            InstructionList site = pushSite(offset, invokeInstruction, POST_INVOKE_MESSAGE);
+            return buildPostInvokeEventInstructions(returnType, site);
+        }
+
+        InstructionList instructionList = new InstructionList();
+
+        int systemOutField = constantPoolGen.addFieldref("java.lang.System", "out", "Ljava/io/PrintStream;");
+        int printMethod = constantPoolGen.addMethodref("java.io.PrintStream", "print", "(Ljava/lang/String;)V");
+
+        instructionList.append(new GETSTATIC(systemOutField));
+        instructionList.append(new PUSH(constantPoolGen, POST_INVOKE_MESSAGE));
+        instructionList.append(new INVOKEVIRTUAL(printMethod));
+
+        instructionList.append(InstructionFactory.createDup(returnType.getSize()));
+        instructionList.append(new GETSTATIC(systemOutField));
+        instructionList.append(ProbeInstructions.swapTopItems(returnType)); //arguments must be higher on stack than calling function
+
+        if (returnType instanceof BasicType) {
+            Type[] returnedTypeInArray = new Type[]{ProbeInstructions.toArgumentType(returnType)};
+            InvokeInstruction valueOfCallInvoke =
+                    instructionFactory.createInvoke("java.lang.String", "valueOf", STRING, returnedTypeInArray, INVOKESTATIC);
+            instructionList.append(valueOfCallInvoke);
+        } else {
+            //prints "null" for null results, where calling toString directly would throw
+            instructionList.append(instructionFactory.createInvoke("java.lang.String", "valueOf", STRING,
+                    new Type[]{OBJECT}, INVOKESTATIC));
+        }
+
+        int println = constantPoolGen.addMethodref("java.io.PrintStream", "println", "(Ljava/lang/String;)V");
+        instructionList.append(new INVOKEVIRTUAL(println));
+
+        return instructionList;
+    }
+
+    /**
+     * Records the returned value without formatting it. References are turned into text, unless only their
+     * identities are recorded, which keeps toString of the returned object out of the probe.
+     */
+    private InstructionList buildPostInvokeEventInstructions(Type returnType, InstructionList site) {
+        InstructionList instructionList = new InstructionList();
+        instructionList.append(InstructionFactory.createDup(returnType.getSize()));
+        instructionList.append(site);
+        instructionList.append(ProbeInstructions.swapTopItems(returnType)); //site must be the first argument
+
+        Type recordedType = ProbeInstructions.toArgumentType(returnType);
+        if (!(returnType instanceof BasicType)) {
+            if (recordIdentities) {
+                recordedType = OBJECT;
+            } else {
+                instructionList.append(instructionFactory.createInvoke("java.lang.String", "valueOf", STRING,
+                        new Type[]{OBJECT}, INVOKESTATIC));
+                recordedType = STRING;
+            }
+        }
+        instructionList.append(instructionFactory.createInvoke(EVENT_LOG_CLASS, "record", VOID,
+                new Type[]{siteType(), recordedType}, INVOKESTATIC));
+
+        return instructionList;
+    }
+
+    /**
+     * Pushes the site of an event: its text, or its id when sites are described in the sidecar table.
+     */
+    private InstructionList pushSite(int offset, InvokeInstruction invokeInstruction, String text) {
+        SiteIdTable siteTable = instrumentedClass.getSiteTable();
+        if (siteTable == null) {
+            InstructionList instructionList = new InstructionList();
+            instructionList.append(new PUSH(constantPoolGen, text));
+            return instructionList;
+        }
+
+        String invoked = invokeInstruction.getReferenceType(constantPoolGen) + "."
+                + invokeInstruction.getMethodName(constantPoolGen) + invokeInstruction.getSignature(constantPoolGen);
+        return siteTable.pushSiteId(siteTable.addSite(method, offset, invoked, text));
+    }
+
+    private Type siteType() {
+        return instrumentedClass.getSiteTable() != null ? INT : STRING;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Histogram of non-negative longs kept in a plain {@code long[]}, so recording neither allocates nor locks.
+ * Like HdrHistogram, values are grouped by their highest set bit and each such range is split into
+ * {@value #SUB_BUCKETS} equal buckets, which keeps the relative error of reported values below 1/{@value #SUB_BUCKETS}.
+ * Values below {@value #SUB_BUCKETS} are exact, values from 2^48 on share the last bucket.
+ * <p>
+ * The two cells after the buckets hold the count and the sum of recorded values.
+ */
+public class LogLinearHistogram {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_MAGNITUDE = 47;
+    private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+    private static final int COUNT = BUCKETS;
+    private static final int SUM = BUCKETS + 1;
+
+    public static final int SIZE = BUCKETS + 2;
+
+    private LogLinearHistogram() {
+    }
+
+    public static long[] create() {
+        return new long[SIZE];
+    }
+
+    public static void record(long[] histogram, long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        histogram[indexOf(value)]++;
+        histogram[COUNT]++;
+        histogram[SUM] += value;
+    }
+
+    public static void add(long[] target, long[] source) {
+        for (int i = 0; i < SIZE; i++) {
+            target[i] += source[i];
+        }
+    }
+
+    public static long count(long[] histogram) {
+        return histogram[COUNT];
+    }
+
+    public static long sum(long[] histogram) {
+        return histogram[SUM];
+    }
+
+    /**
+     * @param percentile between 0 and 100
+     * @return highest value equivalent to the one at the percentile, 0 for an empty histogram
+     */
+    public static long percentile(long[] histogram, double percentile) {
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            count += histogram[i];
+        }
+        long rank = Math.max(1L, (long) Math.ceil(count * percentile / 100.0));
+
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return highestValueAt(i);
+            }
+        }
+        return 0L;
+    }
+
+    public static long max(long[] histogram) {
+        for (int i = BUCKETS - 1; i >= 0; i--) {
+            if (histogram[i] > 0) {
+                return highestValueAt(i);
+            }
+        }
+        return 0L;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int magnitude = 63 - Long.numberOfLeadingZeros(value);
+        if (magnitude > MAX_MAGNITUDE) {
+            return BUCKETS - 1;
+        }
+        int shift = magnitude - SUB_BUCKET_BITS;
+        return ((shift + 1) << SUB_BUCKET_BITS) + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int shift = (index >> SUB_BUCKET_BITS) - 1;
+        long subBucket = (index & (SUB_BUCKETS - 1)) + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,142 @@
+import org.apache.bcel.classfile.Method;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Pattern;
+
+
+/**
+ * Selects the methods {@link InstrumentationEngine} instruments, configured by transformer options:
+ * <ul>
+ * <li>{@code -include=glob} and {@code -exclude=glob} rules, the last rule matching a method decides,
+ * methods matching no rule are instrumented unless there is an include rule,</li>
+ * <li>{@code -minsize=N} leaves out methods with less than N bytes of code,</li>
+ * <li>{@code -hotmethods=file} instruments only methods listed in the file, e.g. a report of a previous run.</li>
+ * </ul>
+ * Globs match {@code class.method}, or {@code class.method(signature)} when they contain a parenthesis.
+ * {@code *} matches any characters but dots, {@code **} any characters and {@code ?} a single character but a dot,
+ * so {@code **.m*} matches methods starting with "m" in any package.
+ * <p>
+ * The hot methods file holds a method as {@code class.method(signature)} at the start of a line, lines
+ * starting with anything else are skipped. Reports of {@link MethodTimings} and {@link InstructionsUsageStatistics}
+ * can be used as they are.
+ */
+public class MethodFilter {
+    public static final String INCLUDE_OPTION = "-include=";
+    public static final String EXCLUDE_OPTION = "-exclude=";
+    public static final String MIN_SIZE_OPTION = "-minsize=";
+    public static final String HOT_METHODS_OPTION = "-hotmethods=";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final List<Rule> rules = new ArrayList<Rule>();
+    private final boolean includedByDefault;
+    private final int minSize;
+    private final Set<String> hotMethods;
+
+    private static class Rule {
+        private final boolean include;
+        private final boolean withSignature;
+        private final Pattern pattern;
+
+        private Rule(boolean include, String glob) {
+            this.include = include;
+            this.withSignature = glob.indexOf('(') >= 0;
+            this.pattern = compileGlob(glob);
+        }
+    }
+
+    public MethodFilter(String[] options) {
+        boolean anyInclude = false;
+        int minSize = 0;
+        Set<String> hotMethods = null;
+        for (String option : options) {
+            if (option.startsWith(INCLUDE_OPTION)) {
+                rules.add(new Rule(true, option.substring(INCLUDE_OPTION.length())));
+                anyInclude = true;
+            } else if (option.startsWith(EXCLUDE_OPTION)) {
+                rules.add(new Rule(false, option.substring(EXCLUDE_OPTION.length())));
+            } else if (option.startsWith(MIN_SIZE_OPTION)) {
+                minSize = Integer.parseInt(option.substring(MIN_SIZE_OPTION.length()));
+            } else if (option.startsWith(HOT_METHODS_OPTION)) {
+                hotMethods = readHotMethods(new File(option.substring(HOT_METHODS_OPTION.length())));
+            }
+        }
+        this.includedByDefault = !anyInclude;
+        this.minSize = minSize;
+        this.hotMethods = hotMethods;
+    }
+
+    public boolean accepts(String className, Method method) {
+        if (method.getCode() != null && method.getCode().getCode().length < minSize) {
+            return false;
+        }
+
+        String name = className + "." + method.getName();
+        String nameWithSignature = name + method.getSignature();
+        if (hotMethods != null && !hotMethods.contains(nameWithSignature)) {
+            return false;
+        }
+
+        boolean accepted = includedByDefault;
+        for (Rule rule : rules) {
+            if (rule.pattern.matcher(rule.withSignature ? nameWithSignature : name).matches()) {
+                accepted = rule.include;
+            }
+        }
+        return accepted;
+    }
+
+    /**
+     * @return sorted methods read from the hot methods file, or null when there is no such file
+     */
+    public Set<String> getHotMethods() {
+        return hotMethods != null ? Collections.unmodifiableSet(hotMethods) : null;
+    }
+
+    private static Pattern compileGlob(String glob) {
+        StringBuilder regex = new StringBuilder();
+        for (int i = 0; i < glob.length(); i++) {
+            char c = glob.charAt(i);
+            if (c == '*' && i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+                regex.append(".*");
+                i++;
+            } else if (c == '*') {
+                regex.append("[^.]*");
+            } else if (c == '?') {
+                regex.append("[^.]");
+            } else if (Character.isLetterOrDigit(c)) {
+                regex.append(c);
+            } else {
+                regex.append('\\').append(c);
+            }
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    private static Set<String> readHotMethods(File file) {
+        Set<String> methods = new TreeSet<String>();
+        try {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String method = line.trim().split("\\s+")[0];
+                    if (method.indexOf('(') > 0 && !method.startsWith("#")) {
+                        methods.add(method);
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (IOException ex) {
+            throw new IllegalArgumentException("Cannot read hot methods from " + file, ex);
+        }
+        return methods;
+    }
+}
@@ -0,0 +1,250 @@
+import org.apache.bcel.generic.*;
+
+import java.util.*;
+
+
+/**
+ * Collects the probes aspects add to a method and rewrites the method once all of them are known.
+ * <p>
+ * Probes are whole instruction lists queued by the original instruction they surround, so every probe is spliced into
+ * the method with a single relinking instead of an insert per instruction. Jumps are redirected to probes through the
+ * targeters of the instrumented instruction, not by scanning the method for every probe, and the maximum stack size is
+ * computed from what the probes push on top of the original maximum instead of analysing the rewritten method again.
+ * <p>
+ * Queued lists are emptied, their handles are moved into the method, so branches may target them.
+ * <p>
+ * With a guard set, probes queued before and after instructions run only while its {@link ProbeSwitches} flag is on.
+ */
+public class MethodRewriter {
+    private static final String SWITCHES_CLASS = "ProbeSwitches";
+
+    private final MethodGen methodGen;
+    private final ConstantPoolGen constantPoolGen;
+    private final Map<InstructionHandle, Probes> probes = new LinkedHashMap<InstructionHandle, Probes>();
+    private final InstructionList entry = new InstructionList();
+    private final List<InstructionList> catchAllHandlers = new ArrayList<InstructionList>();
+    private final int originalMaxStack;
+    private int maxStack;
+    private String guardFlag;
+
+    private static class Probes {
+        private final InstructionList before = new InstructionList();
+        private final InstructionList after = new InstructionList();
+        //first instruction of the probes jumps to the original instruction have to land on, null to leave them alone
+        private InstructionHandle jumpTarget;
+        //branches of the probes from the jump target on, they may jump to the original instruction and stay so
+        private Set<InstructionTargeter> keptBranches;
+    }
+
+    public MethodRewriter(MethodGen methodGen) {
+        this.methodGen = methodGen;
+        this.constantPoolGen = methodGen.getConstantPool();
+        this.originalMaxStack = methodGen.getMaxStack();
+        this.maxStack = originalMaxStack;
+    }
+
+    public MethodGen getMethodGen() {
+        return methodGen;
+    }
+
+    /**
+     * Original instructions of the method, probes are not in it until {@link #rewrite()}.
+     */
+    public InstructionList getInstructionList() {
+        return methodGen.getInstructionList();
+    }
+
+    public ConstantPoolGen getConstantPool() {
+        return constantPoolGen;
+    }
+
+    /**
+     * Guards probes queued from now on with the {@link ProbeSwitches} flag, null to let them run unconditionally.
+     */
+    public void setGuard(String flag) {
+        this.guardFlag = flag;
+    }
+
+    public boolean isGuarded() {
+        return guardFlag != null;
+    }
+
+    /**
+     * Wraps the code so that it is skipped while the guard flag is off, or returns the code as it is without a guard.
+     * Probes queued before and after instructions are wrapped already, entry code and handlers are up to the aspect.
+     */
+    public InstructionList guarded(InstructionList code) {
+        if (guardFlag == null || code.isEmpty()) {
+            return code;
+        }
+        InstructionList guardedCode = new InstructionList();
+        guardedCode.append(new GETSTATIC(constantPoolGen.addFieldref(SWITCHES_CLASS, guardFlag, "Z")));
+        InstructionHandle end = code.append(InstructionConstants.NOP);
+        guardedCode.append(new IFEQ(end));
+        guardedCode.append(code);
+        return guardedCode;
+    }
+
+    /**
+     * Queues the probe right before the original instruction, after probes queued before it earlier.
+     * Jumps to the instruction skip the probe unless a probe queued later redirects them.
+     */
+    public void insertBefore(InstructionHandle original, InstructionList probe) {
+        insertBefore(original, probe, false);
+    }
+
+    /**
+     * Queues the probe right before the original instruction, after probes queued before it earlier.
+     *
+     * @param redirectJumps whether jumps and exception handlers targeting the instruction land on the probe,
+     *                      so that the instruction is never reached without passing the probe
+     */
+    public void insertBefore(InstructionHandle original, InstructionList probe, boolean redirectJumps) {
+        if (probe.isEmpty()) {
+            return;
+        }
+        queueBefore(original, guarded(probe), redirectJumps);
+    }
+
+    /**
+     * Queues code right before the original instruction like a probe, but never guarded: code the method needs
+     * whatever the switches, such as releasing a monitor taken by the aspect.
+     */
+    public void insertUnguardedBefore(InstructionHandle original, InstructionList code, boolean redirectJumps) {
+        if (code.isEmpty()) {
+            return;
+        }
+        queueBefore(original, code, redirectJumps);
+    }
+
+    private void queueBefore(InstructionHandle original, InstructionList probe, boolean redirectJumps) {
+        reserveStack(0, probe);
+
+        Probes instructionProbes = probesOf(original);
+        if (redirectJumps && instructionProbes.jumpTarget == null) {
+            instructionProbes.jumpTarget = probe.getStart();
+            instructionProbes.keptBranches = Collections.newSetFromMap(new IdentityHashMap<InstructionTargeter, Boolean>());
+        }
+        if (instructionProbes.keptBranches != null) {
+            for (InstructionHandle handle = probe.getStart(); handle != null; handle = handle.getNext()) {
+                if (handle instanceof BranchHandle) {
+                    instructionProbes.keptBranches.add((InstructionTargeter) handle.getInstruction());
+                }
+            }
+        }
+        instructionProbes.before.append(probe);
+    }
+
+    /**
+     * Queues the probe right after the original instruction, after probes queued after it earlier.
+     */
+    public void insertAfter(InstructionHandle original, InstructionList probe) {
+        if (probe.isEmpty()) {
+            return;
+        }
+        probe = guarded(probe);
+        reserveStack(0, probe);
+        probesOf(original).after.append(probe);
+    }
+
+    /**
+     * Queues code run once on the method entry, before any probe. Jumps to the first instruction never reach it.
+     */
+    public void insertAtEntry(InstructionList code) {
+        reserveStack(0, code);
+        entry.append(code);
+    }
+
+    /**
+     * Queues a handler catching anything thrown in the rewritten method, probes included, and handlers queued
+     * earlier. The handler starts with the exception on the stack and must not fall through its end.
+     */
+    public void addCatchAllHandler(InstructionList handler) {
+        reserveStack(1, handler);
+        catchAllHandlers.add(handler);
+    }
+
+    /**
+     * Splices the queued probes into the method and sets its maximum stack size.
+     * Locals used by the probes are expected to be reserved with {@link ProbeInstructions#allocateLocal}.
+     */
+    public void rewrite() {
+        InstructionList instructionList = methodGen.getInstructionList();
+
+        for (Map.Entry<InstructionHandle, Probes> instructionProbes : probes.entrySet()) {
+            InstructionHandle original = instructionProbes.getKey();
+            Probes probesOfInstruction = instructionProbes.getValue();
+
+            if (probesOfInstruction.jumpTarget != null && original.hasTargeters()) {
+                redirectJumps(original, probesOfInstruction.jumpTarget, probesOfInstruction.keptBranches);
+            }
+            if (!probesOfInstruction.before.isEmpty()) {
+                instructionList.insert(original, probesOfInstruction.before);
+            }
+            if (!probesOfInstruction.after.isEmpty()) {
+                instructionList.append(original, probesOfInstruction.after);
+            }
+        }
+        probes.clear();
+
+        InstructionHandle bodyStart = instructionList.getStart();
+        for (InstructionList handler : catchAllHandlers) {
+            InstructionHandle bodyEnd = instructionList.getEnd();
+            InstructionHandle handlerStart = instructionList.append(handler);
+            methodGen.addExceptionHandler(bodyStart, bodyEnd, handlerStart, null);
+        }
+        catchAllHandlers.clear();
+
+        if (!entry.isEmpty()) {
+            instructionList.insert(entry);
+        }
+
+        methodGen.setMaxStack(maxStack);
+    }
+
+    private Probes probesOf(InstructionHandle original) {
+        Probes instructionProbes = probes.get(original);
+        if (instructionProbes == null) {
+            instructionProbes = new Probes();
+            probes.put(original, instructionProbes);
+        }
+        return instructionProbes;
+    }
+
+    /**
+     * Probes leave the stack as they found it and jump only forward or out of themselves, so the stack grows at most
+     * by the highest level a probe reaches over the level it starts at, which is never above the original maximum.
+     * Handlers start at the level of their exception whatever the original maximum.
+     */
+    private void reserveStack(int initialStack, InstructionList code) {
+        int stack = initialStack;
+        int highest = stack;
+        for (InstructionHandle handle = code.getStart(); handle != null; handle = handle.getNext()) {
+            Instruction instruction = handle.getInstruction();
+            stack += instruction.produceStack(constantPoolGen) - instruction.consumeStack(constantPoolGen);
+            highest = Math.max(highest, stack);
+        }
+        maxStack = Math.max(maxStack, initialStack > 0 ? highest : originalMaxStack + highest);
+    }
+
+    /**
+     * Jumps of the original code and of probes queued before the jump target land on it, like they would if the probe
+     * was inserted and the whole method searched for jumps right away. End of a protected range stays where it is,
+     * it is inclusive.
+     */
+    private void redirectJumps(InstructionHandle original, InstructionHandle probe, Set<InstructionTargeter> keptBranches) {
+        for (InstructionTargeter targeter : original.getTargeters()) {
+            if (targeter instanceof BranchInstruction && !keptBranches.contains(targeter)) {
+                targeter.updateTarget(original, probe);
+            } else if (targeter instanceof CodeExceptionGen) {
+                CodeExceptionGen exceptionHandler = (CodeExceptionGen) targeter;
+                if (exceptionHandler.getStartPC() == original) {
+                    exceptionHandler.setStartPC(probe);
+                }
+                if (exceptionHandler.getHandlerPC() == original) {
+                    exceptionHandler.setHandlerPC(probe);
+                }
+            }
+        }
+    }
+}
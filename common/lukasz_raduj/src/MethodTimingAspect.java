@@ -0,0 +1,87 @@
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+
+/**
+ * Measures how long methods take: the start time is taken on entry, and the duration is recorded into
+ * {@link MethodTimings} before every return and in a catch-all handler which rethrows exceptions leaving the method.
+ * <p>
+ * Constructors are not timed, a handler covering the superclass constructor call does not pass verification.
+ */
+public class MethodTimingAspect implements InstrumentationAspect {
+    public static final String NAME = "method-timing";
+
+    private static final String TIMINGS_CLASS = "MethodTimings";
+    private static final String BASE_FIELD_NAME = "methodTimingBase$";
+
+    private ClassGen classGen;
+    private ConstantPoolGen constantPoolGen;
+    private ClassSiteRegistration timedMethods;
+    private int methodId;
+    private int startSlot;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void startClass(InstrumentedClass instrumentedClass) {
+        classGen = instrumentedClass.getClassGen();
+        constantPoolGen = instrumentedClass.getConstantPool();
+        timedMethods = new ClassSiteRegistration(classGen, TIMINGS_CLASS, BASE_FIELD_NAME);
+    }
+
+    @Override
+    public boolean startMethod(Method method, MethodRewriter rewriter) {
+        if (method.getName().equals("<init>") || method.getName().equals("<clinit>")) {
+            return false;
+        }
+
+        methodId = timedMethods.addSite(classGen.getClassName() + "." + method.getName() + method.getSignature());
+        startSlot = ProbeInstructions.allocateLocal(rewriter.getMethodGen(), Type.LONG);
+        return true;
+    }
+
+    @Override
+    public void visitInstruction(MethodRewriter rewriter, InstructionHandle instructionHandle) {
+        if (instructionHandle.getInstruction() instanceof ReturnInstruction) {
+            //jumps to a return have to land on its probe, otherwise the call is not recorded
+            rewriter.insertBefore(instructionHandle, buildRecord(), true);
+        }
+    }
+
+    @Override
+    public void finishMethod(MethodRewriter rewriter) {
+        //exception is left on the stack below the record arguments and rethrown,
+        //the handler covers probes of the other aspects too, exceptions they throw leave the method as well
+        InstructionList rethrow = rewriter.guarded(buildRecord());
+        rethrow.append(InstructionConstants.ATHROW);
+        rewriter.addCatchAllHandler(rethrow);
+
+        InstructionList start = new InstructionList();
+        if (rewriter.isGuarded()) {
+            //calls started while the probes are off have no start time, they are not recorded when the probes go on
+            start.append(new LCONST(0));
+            start.append(new LSTORE(startSlot));
+        }
+        InstructionList takeStartTime = new InstructionList();
+        takeStartTime.append(new INVOKESTATIC(constantPoolGen.addMethodref("java.lang.System", "nanoTime", "()J")));
+        takeStartTime.append(new LSTORE(startSlot));
+        start.append(rewriter.guarded(takeStartTime));
+        rewriter.insertAtEntry(start);
+    }
+
+    @Override
+    public void finishClass() {
+        timedMethods.injectClassRegistration();
+    }
+
+    private InstructionList buildRecord() {
+        InstructionList instructions = new InstructionList();
+        instructions.append(timedMethods.pushSiteId(methodId));
+        instructions.append(new LLOAD(startSlot));
+        instructions.append(new INVOKESTATIC(constantPoolGen.addMethodref(TIMINGS_CLASS, "record", "(IJ)V")));
+        return instructions;
+    }
+}
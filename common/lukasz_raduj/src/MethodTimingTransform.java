@@ -0,0 +1,17 @@
+/**
+ * Measures how long methods take, see {@link MethodTimingAspect}.
+ */
+public class MethodTimingTransform extends InstrumentationEngine {
+
+    public static void main(String[] args) {
+        transformClassFile(MethodTimingTransform.class.getName(), args);
+    }
+
+    public MethodTimingTransform() {
+        this(new String[0]);
+    }
+
+    public MethodTimingTransform(String[] options) {
+        super(options, new MethodTimingAspect());
+    }
+}
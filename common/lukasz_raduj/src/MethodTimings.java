@@ -0,0 +1,138 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Runtime of the method timing probes inserted by {@link MethodTimingTransform}.
+ * Every thread records durations into its own {@link LogLinearHistogram} per method, so a probe is a thread-local
+ * lookup and a few array increments. Histograms are merged only when the report is built,
+ * at shutdown or whenever {@link #printReport(PrintStream)} is called.
+ */
+public class MethodTimings {
+    private static final int INITIAL_CAPACITY = 64;
+
+    //class, name and signature of every timed method
+    private static final SiteDescriptions methods = new SiteDescriptions();
+    private static final int METHOD = 0;
+
+    private static final CopyOnWriteArrayList<ThreadTimings> allTimings = new CopyOnWriteArrayList<ThreadTimings>();
+    private static final ThreadLocal<ThreadTimings> threadTimings = new ThreadLocal<ThreadTimings>() {
+        @Override
+        protected ThreadTimings initialValue() {
+            ThreadTimings timings = new ThreadTimings();
+            allTimings.add(timings);
+            return timings;
+        }
+    };
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                printReport(System.out);
+            }
+        });
+    }
+
+    private MethodTimings() {
+    }
+
+    /**
+     * Reserves ids for the timed methods of a class, called from its static initializer.
+     *
+     * @return id of the first method of the class
+     */
+    public static int reserveSites(int count) {
+        return methods.reserve(count);
+    }
+
+    /**
+     * @param descriptions classes, names and signatures of consecutive methods, separated by new lines
+     */
+    public static void describeSites(int firstMethod, String descriptions) {
+        methods.describe(firstMethod, descriptions);
+    }
+
+    /**
+     * @param startNanos start time of the call, 0 when it was not taken, then nothing is recorded
+     */
+    public static void record(int method, long startNanos) {
+        if (startNanos == 0L) {
+            return;
+        }
+        LogLinearHistogram.record(threadTimings.get().of(method), System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Prints count, median, 99th and 99.9th percentile and maximum of every called method, longest total time first.
+     */
+    public static void printReport(PrintStream output) {
+        int methodCount = methods.size();
+        List<Integer> called = new ArrayList<Integer>();
+        final long[][] merged = new long[methodCount][];
+        for (int method = 0; method < methodCount; method++) {
+            for (ThreadTimings timings : allTimings) {
+                long[] histogram = timings.get(method);
+                if (histogram == null) {
+                    continue;
+                }
+                if (merged[method] == null) {
+                    merged[method] = LogLinearHistogram.create();
+                    called.add(method);
+                }
+                LogLinearHistogram.add(merged[method], histogram);
+            }
+        }
+
+        Collections.sort(called, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer first, Integer second) {
+                long firstSum = LogLinearHistogram.sum(merged[first]);
+                long secondSum = LogLinearHistogram.sum(merged[second]);
+                return firstSum > secondSum ? -1 : (firstSum == secondSum ? 0 : 1);
+            }
+        });
+
+        output.printf("%-60s %10s %12s %12s %12s %12s%n", "method [ns]", "calls", "p50", "p99", "p99.9", "max");
+        for (Integer method : called) {
+            long[] histogram = merged[method];
+            output.printf("%-60s %10d %12d %12d %12d %12d%n", methods.get(method, METHOD),
+                    LogLinearHistogram.count(histogram),
+                    LogLinearHistogram.percentile(histogram, 50.0), LogLinearHistogram.percentile(histogram, 99.0),
+                    LogLinearHistogram.percentile(histogram, 99.9), LogLinearHistogram.max(histogram));
+        }
+        output.flush();
+    }
+
+    /**
+     * Histograms owned by a single thread. Only the owner writes, so no locking is needed;
+     * readers may see slightly stale values, which is fine for reporting.
+     */
+    private static final class ThreadTimings {
+        private volatile long[][] histograms = new long[INITIAL_CAPACITY][];
+
+        long[] of(int method) {
+            long[][] current = histograms;
+            if (method >= current.length) {
+                current = Arrays.copyOf(current, Math.max(method + 1, current.length * 2));
+                histograms = current;
+            }
+            long[] histogram = current[method];
+            if (histogram == null) {
+                histogram = LogLinearHistogram.create();
+                current[method] = histogram;
+            }
+            return histogram;
+        }
+
+        long[] get(int method) {
+            long[][] current = histograms;
+            return method < current.length ? current[method] : null;
+        }
+    }
+}
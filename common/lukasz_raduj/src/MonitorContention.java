@@ -0,0 +1,187 @@
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+
+/**
+ * Runtime of the monitor probes inserted by {@link MonitorContentionAspect}. Every thread records how long it waited
+ * for monitors into its own {@link LogLinearHistogram} per lock site and class of the lock, so a probe is
+ * a thread-local lookup and a few array increments. Entries waiting longer than {@value #CONTENDED_PROPERTY}
+ * nanoseconds, 1000 by default, are counted as contended: an uncontended entry takes tens of nanoseconds,
+ * one that had to block takes at least a few microseconds.
+ * <p>
+ * At exit lock sites and lock classes are printed, longest total wait first.
+ */
+public class MonitorContention {
+    public static final String CONTENDED_PROPERTY = "monitors.contended.nanos";
+
+    private static final int INITIAL_CAPACITY = 64;
+    private static final long CONTENDED_NANOS = Long.getLong(CONTENDED_PROPERTY, 1000L);
+
+    //locking method and offset of the monitorenter of every site
+    private static final SiteDescriptions sites = new SiteDescriptions();
+    private static final int METHOD = 0;
+    private static final int OFFSET = 1;
+
+    private static final CopyOnWriteArrayList<ThreadWaits> allWaits = new CopyOnWriteArrayList<ThreadWaits>();
+    private static final ThreadLocal<ThreadWaits> threadWaits = new ThreadLocal<ThreadWaits>() {
+        @Override
+        protected ThreadWaits initialValue() {
+            ThreadWaits waits = new ThreadWaits();
+            allWaits.add(waits);
+            return waits;
+        }
+    };
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                printReport(System.out);
+            }
+        });
+    }
+
+    private MonitorContention() {
+    }
+
+    /**
+     * Reserves ids for the lock sites of a class, called from its static initializer.
+     *
+     * @return id of the first site of the class
+     */
+    public static int reserveSites(int count) {
+        return sites.reserve(count);
+    }
+
+    /**
+     * @param descriptions locking method and offset of the monitorenter of consecutive sites, separated by tabs
+     * and new lines
+     */
+    public static void describeSites(int firstSite, String descriptions) {
+        sites.describe(firstSite, descriptions);
+    }
+
+    /**
+     * Records an entry into the monitor of the lock, right after it is entered.
+     *
+     * @param startNanos time the entry started, 0 when it was not taken, then nothing is recorded
+     */
+    public static void entered(Object lock, long startNanos, int site) {
+        if (startNanos == 0L) {
+            return;
+        }
+        long waitNanos = System.nanoTime() - startNanos;
+        LockWaits waits = threadWaits.get().of(site, lock.getClass());
+        LogLinearHistogram.record(waits.histogram, waitNanos);
+        if (waitNanos > CONTENDED_NANOS) {
+            waits.contended++;
+        }
+    }
+
+    /**
+     * Prints entries, contended entries, total wait and percentiles of the wait of every entered lock site
+     * and of every class of entered locks, longest total wait first. Waits of running threads are read without
+     * stopping them, so the latest entries may be missing.
+     */
+    public static synchronized void printReport(PrintStream output) {
+        Map<String, LockWaits> bySite = new LinkedHashMap<String, LockWaits>();
+        Map<String, LockWaits> byClass = new LinkedHashMap<String, LockWaits>();
+        int siteCount = sites.size();
+        for (ThreadWaits waitsOfThread : allWaits) {
+            LockWaits[] siteWaits = waitsOfThread.sites;
+            for (int site = 0; site < Math.min(siteWaits.length, siteCount); site++) {
+                for (LockWaits waits = siteWaits[site]; waits != null; waits = waits.next) {
+                    merge(bySite, sites.get(site, METHOD) + "@" + sites.get(site, OFFSET), waits);
+                    merge(byClass, waits.lockClass.getName(), waits);
+                }
+            }
+        }
+        if (bySite.isEmpty()) {
+            return;
+        }
+
+        printWaits(output, "lock site", bySite);
+        printWaits(output, "lock class", byClass);
+        output.flush();
+    }
+
+    private static void merge(Map<String, LockWaits> merged, String key, LockWaits waits) {
+        LockWaits mergedWaits = merged.get(key);
+        if (mergedWaits == null) {
+            mergedWaits = new LockWaits(waits.lockClass);
+            merged.put(key, mergedWaits);
+        }
+        LogLinearHistogram.add(mergedWaits.histogram, waits.histogram);
+        mergedWaits.contended += waits.contended;
+    }
+
+    private static void printWaits(PrintStream output, String title, Map<String, LockWaits> merged) {
+        List<Map.Entry<String, LockWaits>> entries = new ArrayList<Map.Entry<String, LockWaits>>(merged.entrySet());
+        Collections.sort(entries, new Comparator<Map.Entry<String, LockWaits>>() {
+            @Override
+            public int compare(Map.Entry<String, LockWaits> first, Map.Entry<String, LockWaits> second) {
+                long firstSum = LogLinearHistogram.sum(first.getValue().histogram);
+                long secondSum = LogLinearHistogram.sum(second.getValue().histogram);
+                return firstSum > secondSum ? -1 : (firstSum == secondSum ? 0 : 1);
+            }
+        });
+
+        output.printf("%-70s %10s %10s %14s %10s %10s %12s%n", title + " [ns]", "entries", "contended", "total wait",
+                "p50", "p99", "max");
+        for (Map.Entry<String, LockWaits> entry : entries) {
+            long[] histogram = entry.getValue().histogram;
+            output.printf("%-70s %10d %10d %14d %10d %10d %12d%n", entry.getKey(), LogLinearHistogram.count(histogram),
+                    entry.getValue().contended, LogLinearHistogram.sum(histogram),
+                    LogLinearHistogram.percentile(histogram, 50.0), LogLinearHistogram.percentile(histogram, 99.0),
+                    LogLinearHistogram.max(histogram));
+        }
+    }
+
+    /**
+     * Waits for locks of a single class at a site. Only the owner thread writes, so no locking is needed;
+     * readers may see slightly stale values, which is fine for reporting.
+     */
+    private static final class LockWaits {
+        private final Class<?> lockClass;
+        private final long[] histogram = LogLinearHistogram.create();
+        private long contended;
+        //waits for locks of other classes at the same site, sites seldom see more than one
+        private volatile LockWaits next;
+
+        LockWaits(Class<?> lockClass) {
+            this.lockClass = lockClass;
+        }
+    }
+
+    private static final class ThreadWaits {
+        private volatile LockWaits[] sites = new LockWaits[INITIAL_CAPACITY];
+
+        LockWaits of(int site, Class<?> lockClass) {
+            LockWaits[] current = sites;
+            if (site >= current.length) {
+                current = Arrays.copyOf(current, Math.max(site + 1, current.length * 2));
+                sites = current;
+            }
+            LockWaits waits = current[site];
+            if (waits == null) {
+                waits = new LockWaits(lockClass);
+                current[site] = waits;
+                return waits;
+            }
+            while (waits.lockClass != lockClass) {
+                if (waits.next == null) {
+                    waits.next = new LockWaits(lockClass);
+                }
+                waits = waits.next;
+            }
+            return waits;
+        }
+    }
+}
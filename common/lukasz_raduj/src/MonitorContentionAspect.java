@@ -0,0 +1,167 @@
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+
+/**
+ * Times how long every {@code monitorenter} and every entry of a synchronized method waits for its monitor,
+ * recorded into {@link MonitorContention} with the lock, right after the monitor is entered.
+ * <p>
+ * The JVM enters the monitor of a synchronized method before its first instruction, so such methods are rewritten
+ * the way the compiler writes synchronized blocks: the flag is cleared, the monitor is entered on method entry and
+ * exited before every return and in a catch-all handler rethrowing exceptions leaving the method. The lock
+ * of the method is kept in a local of its own, which probes of {@code monitorenter} never write. Taking and
+ * releasing the monitor is never guarded, only timing it is. Static synchronized methods of classes older than
+ * Java 5, which cannot load their class as a constant, keep their flag and are not timed.
+ */
+public class MonitorContentionAspect implements InstrumentationAspect {
+    public static final String NAME = "monitor-contention";
+
+    private static final String CONTENTION_CLASS = "MonitorContention";
+    private static final String BASE_FIELD_NAME = "monitorContentionBase$";
+    private static final String SYNCHRONIZED_METHOD_OFFSET = "synchronized";
+    //class constants can be loaded by ldc since Java 5
+    private static final int CLASS_CONSTANTS_MAJOR = 49;
+
+    private ClassGen classGen;
+    private ConstantPoolGen constantPoolGen;
+    private ClassSiteRegistration sites;
+    private String lockingMethod;
+    private MethodGen methodGen;
+    private boolean synchronizedMethod;
+    //lock of the synchronized method, released before every return, -1 until the method needs it
+    private int monitorSlot;
+    //locals of the probes, shared by all monitorenter sites of the method, -1 until the method needs them
+    private int lockSlot;
+    private int startSlot;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public void startClass(InstrumentedClass instrumentedClass) {
+        classGen = instrumentedClass.getClassGen();
+        constantPoolGen = instrumentedClass.getConstantPool();
+        sites = new ClassSiteRegistration(classGen, CONTENTION_CLASS, BASE_FIELD_NAME);
+    }
+
+    @Override
+    public boolean startMethod(Method method, MethodRewriter rewriter) {
+        lockingMethod = classGen.getClassName() + "." + method.getName() + method.getSignature();
+        methodGen = rewriter.getMethodGen();
+        synchronizedMethod = method.isSynchronized()
+                && (!method.isStatic() || classGen.getMajor() >= CLASS_CONSTANTS_MAJOR);
+        monitorSlot = -1;
+        lockSlot = -1;
+        startSlot = -1;
+        return true;
+    }
+
+    @Override
+    public void visitInstruction(MethodRewriter rewriter, InstructionHandle instructionHandle) {
+        Instruction instruction = instructionHandle.getInstruction();
+        if (instruction instanceof MONITORENTER) {
+            allocateSiteSlots();
+            int site = sites.addSite(lockingMethod + "\t" + instructionHandle.getPosition());
+
+            //the lock is on top of the stack, jumps landing on the monitorenter with it have to pass the probe
+            InstructionList takeStartTime = new InstructionList();
+            takeStartTime.append(InstructionConstants.DUP);
+            takeStartTime.append(new ASTORE(lockSlot));
+            takeStartTime.append(buildNanoTime());
+            takeStartTime.append(new LSTORE(startSlot));
+            rewriter.insertBefore(instructionHandle, takeStartTime, true);
+            rewriter.insertAfter(instructionHandle, buildRecord(rewriter, lockSlot, site));
+        } else if (instruction instanceof ReturnInstruction && synchronizedMethod) {
+            InstructionList exit = new InstructionList();
+            exit.append(new ALOAD(monitorSlot()));
+            exit.append(InstructionConstants.MONITOREXIT);
+            //jumps to a return have to land on the exit, otherwise the monitor is never released
+            rewriter.insertUnguardedBefore(instructionHandle, exit, true);
+        }
+    }
+
+    @Override
+    public void finishMethod(MethodRewriter rewriter) {
+        if (synchronizedMethod && startSlot < 0) {
+            startSlot = ProbeInstructions.allocateLocal(methodGen, Type.LONG);
+        }
+        InstructionList entry = new InstructionList();
+        if (rewriter.isGuarded() && startSlot >= 0) {
+            //probes may be switched on between taking the start time and recording it, locals have to be set
+            if (lockSlot >= 0) {
+                entry.append(InstructionConstants.ACONST_NULL);
+                entry.append(new ASTORE(lockSlot));
+            }
+            entry.append(new LCONST(0));
+            entry.append(new LSTORE(startSlot));
+        }
+
+        if (synchronizedMethod) {
+            int site = sites.addSite(lockingMethod + "\t" + SYNCHRONIZED_METHOD_OFFSET);
+
+            if (methodGen.isStatic()) {
+                entry.append(new LDC(constantPoolGen.addClass(classGen.getClassName())));
+            } else {
+                entry.append(InstructionConstants.ALOAD_0);
+            }
+            entry.append(InstructionConstants.DUP);
+            entry.append(new ASTORE(monitorSlot()));
+            InstructionList takeStartTime = new InstructionList();
+            takeStartTime.append(buildNanoTime());
+            takeStartTime.append(new LSTORE(startSlot));
+            entry.append(rewriter.guarded(takeStartTime));
+            entry.append(InstructionConstants.MONITORENTER);
+            entry.append(rewriter.guarded(buildRecord(rewriter, monitorSlot(), site)));
+
+            InstructionList release = new InstructionList();
+            release.append(new ALOAD(monitorSlot()));
+            release.append(InstructionConstants.MONITOREXIT);
+            release.append(InstructionConstants.ATHROW);
+            rewriter.addCatchAllHandler(release);
+            methodGen.isSynchronized(false);
+        }
+        rewriter.insertAtEntry(entry);
+    }
+
+    @Override
+    public void finishClass() {
+        sites.injectClassRegistration();
+    }
+
+    private int monitorSlot() {
+        if (monitorSlot < 0) {
+            monitorSlot = ProbeInstructions.allocateLocal(methodGen, Type.OBJECT);
+        }
+        return monitorSlot;
+    }
+
+    private void allocateSiteSlots() {
+        if (lockSlot < 0) {
+            lockSlot = ProbeInstructions.allocateLocal(methodGen, Type.OBJECT);
+        }
+        if (startSlot < 0) {
+            startSlot = ProbeInstructions.allocateLocal(methodGen, Type.LONG);
+        }
+    }
+
+    private INVOKESTATIC buildNanoTime() {
+        return new INVOKESTATIC(constantPoolGen.addMethodref("java.lang.System", "nanoTime", "()J"));
+    }
+
+    private InstructionList buildRecord(MethodRewriter rewriter, int lock, int site) {
+        InstructionList instructions = new InstructionList();
+        instructions.append(new ALOAD(lock));
+        instructions.append(new LLOAD(startSlot));
+        instructions.append(sites.pushSiteId(site));
+        instructions.append(new INVOKESTATIC(constantPoolGen.addMethodref(CONTENTION_CLASS, "entered",
+                "(Ljava/lang/Object;JI)V")));
+        if (rewriter.isGuarded()) {
+            //a start time left by an entry timed before the probes went off must not be recorded again
+            instructions.append(new LCONST(0));
+            instructions.append(new LSTORE(startSlot));
+        }
+        return instructions;
+    }
+}
@@ -0,0 +1,48 @@
+import org.apache.bcel.generic.*;
+
+
+/**
+ * Instruction sequences needed by probes of more than one aspect.
+ */
+public class ProbeInstructions {
+
+    private ProbeInstructions() {
+    }
+
+    /**
+     * Reserves a new local variable slot, other aspects instrumenting the same method get slots after it.
+     */
+    public static int allocateLocal(MethodGen methodGen, Type type) {
+        int slot = methodGen.getMaxLocals();
+        methodGen.setMaxLocals(slot + type.getSize());
+        return slot;
+    }
+
+    /**
+     * Swaps a value of the given type with the single-word value above it.
+     */
+    public static InstructionList swapTopItems(Type valueType) {
+        InstructionList instructions = new InstructionList();
+        if (isTwoWordType(valueType)) {
+            instructions.append(InstructionConstants.DUP_X2);
+            instructions.append(InstructionConstants.POP);
+        } else {
+            instructions.append(InstructionConstants.SWAP);
+        }
+        return instructions;
+    }
+
+    public static boolean isTwoWordType(Type type) {
+        return type == Type.DOUBLE || type == Type.LONG;
+    }
+
+    /**
+     * Bytes and shorts are ints on the operand stack, and no method has overloads for them.
+     */
+    public static Type toArgumentType(Type type) {
+        if (type == Type.BYTE || type == Type.SHORT) {
+            return Type.INT;
+        }
+        return type;
+    }
+}
@@ -0,0 +1,64 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * Runtime of sampled probes: decides whether an event of a site is reported, before anything is formatted or written.
+ * Every thread keeps its own state of each site, so the decision is a thread-local array access and no locking.
+ * <p>
+ * Sites are numbered per class, see {@link ProbeSampling}, a class reserves its range when it is initialized.
+ */
+public class ProbeSampler {
+    private static final AtomicInteger nextSite = new AtomicInteger();
+
+    private static final ThreadLocal<SiteStates> siteStates = new ThreadLocal<SiteStates>() {
+        @Override
+        protected SiteStates initialValue() {
+            return new SiteStates();
+        }
+    };
+
+    private ProbeSampler() {
+    }
+
+    /**
+     * @return number of the first site of the class
+     */
+    public static int registerSites(int sitesCount) {
+        return nextSite.getAndAdd(sitesCount);
+    }
+
+    /**
+     * Reports the first event of the site and then every {@code period}-th one.
+     * Since the ratio is the same for all sites, hot sites stay as dominant in the output as they are at runtime.
+     */
+    public static boolean sampleEvery(int site, int period) {
+        long[] counters = siteStates.get().of(site);
+        return counters[site]++ % period == 0;
+    }
+
+    /**
+     * Reports an event of the site if the previous reported one is at least {@code intervalNanos} old.
+     */
+    public static boolean sampleAtInterval(int site, long intervalNanos) {
+        long[] nextReports = siteStates.get().of(site);
+        long now = System.nanoTime();
+        //zero stands for a site which has not reported yet
+        if (nextReports[site] != 0 && now - nextReports[site] < 0) {
+            return false;
+        }
+        nextReports[site] = (now + intervalNanos) | 1;
+        return true;
+    }
+
+    private static final class SiteStates {
+        private long[] states = new long[64];
+
+        long[] of(int site) {
+            if (site >= states.length) {
+                states = Arrays.copyOf(states, Math.max(site + 1, states.length * 2));
+            }
+            return states;
+        }
+    }
+}
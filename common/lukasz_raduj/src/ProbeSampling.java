@@ -0,0 +1,101 @@
+import org.apache.bcel.generic.*;
+
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * Generates the sampling decision of probes, which is made by {@link ProbeSampler} before the probe formats
+ * or records anything. Configured by transformer options:
+ * <ul>
+ * <li>{@code -sample=N} reports the first and then every N-th event of a site,</li>
+ * <li>{@code -ratelimit=N} reports at most N events of a site per second.</li>
+ * </ul>
+ * Both count per thread. Sites of a class are numbered from zero, the class reserves its range of
+ * {@link ProbeSampler} sites in its static initializer and keeps the first one in a synthetic static field.
+ */
+public class ProbeSampling {
+    public static final String SAMPLE_OPTION = "-sample=";
+    public static final String RATE_LIMIT_OPTION = "-ratelimit=";
+
+    private static final String SAMPLER_CLASS = "ProbeSampler";
+    private static final String BASE_FIELD_NAME = "probeSamplerBase$";
+
+    private final int period;
+    private final long intervalNanos;
+    private ClassGen classGen;
+    private int sitesCount;
+
+    /**
+     * @return sampling configured by the options, or null if probes report every event
+     */
+    public static ProbeSampling fromOptions(String[] options) {
+        for (String option : options) {
+            if (option.startsWith(SAMPLE_OPTION)) {
+                return new ProbeSampling(positive(option, SAMPLE_OPTION), 0L);
+            }
+            if (option.startsWith(RATE_LIMIT_OPTION)) {
+                long interval = TimeUnit.SECONDS.toNanos(1) / positive(option, RATE_LIMIT_OPTION);
+                return new ProbeSampling(0, Math.max(interval, 1L));
+            }
+        }
+        return null;
+    }
+
+    private static int positive(String option, String prefix) {
+        int value = Integer.parseInt(option.substring(prefix.length()));
+        if (value <= 0) {
+            throw new IllegalArgumentException("Option " + option + " needs a positive number");
+        }
+        return value;
+    }
+
+    private ProbeSampling(int period, long intervalNanos) {
+        this.period = period;
+        this.intervalNanos = intervalNanos;
+    }
+
+    /**
+     * Starts numbering sites of the next transformed class.
+     */
+    public void startClass(ClassGen classGen) {
+        this.classGen = classGen;
+        this.sitesCount = 0;
+    }
+
+    /**
+     * Pushes the decision (int, 0 means skip the event) for a new site of the current class.
+     */
+    public InstructionList pushDecision() {
+        ConstantPoolGen constantPoolGen = classGen.getConstantPool();
+        InstructionList instructions = new InstructionList();
+        instructions.append(new GETSTATIC(constantPoolGen.addFieldref(classGen.getClassName(), BASE_FIELD_NAME, "I")));
+        instructions.append(new PUSH(constantPoolGen, sitesCount++));
+        instructions.append(InstructionConstants.IADD);
+        if (period > 0) {
+            instructions.append(new PUSH(constantPoolGen, period));
+            instructions.append(new INVOKESTATIC(constantPoolGen.addMethodref(SAMPLER_CLASS, "sampleEvery", "(II)Z")));
+        } else {
+            instructions.append(new PUSH(constantPoolGen, intervalNanos));
+            instructions.append(new INVOKESTATIC(constantPoolGen.addMethodref(SAMPLER_CLASS, "sampleAtInterval", "(IJ)Z")));
+        }
+        return instructions;
+    }
+
+    /**
+     * Adds the field with the first site of the class and its initialization, if the class has sampled sites.
+     */
+    public void finishClass() {
+        if (sitesCount == 0) {
+            return;
+        }
+
+        ConstantPoolGen constantPoolGen = classGen.getConstantPool();
+        ClassInitializers.addSyntheticField(classGen, Type.INT, BASE_FIELD_NAME);
+
+        InstructionList registration = new InstructionList();
+        registration.append(new PUSH(constantPoolGen, sitesCount));
+        registration.append(new INVOKESTATIC(constantPoolGen.addMethodref(SAMPLER_CLASS, "registerSites", "(I)I")));
+        registration.append(new PUTSTATIC(constantPoolGen.addFieldref(classGen.getClassName(), BASE_FIELD_NAME, "I")));
+        ClassInitializers.prepend(classGen, registration);
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Names of the flags of {@link ProbeSwitches}, shared with the engine. Loading ProbeSwitches registers its MXBean,
+ * which has no business in the transforming JVM, so the naming lives here.
+ */
+public class ProbeSwitchNames {
+    private ProbeSwitchNames() {
+    }
+
+    /**
+     * @return name of the flag of the aspect, the aspect name in camel case, e.g. invokeAround for invoke-around
+     */
+    public static String flagName(String aspectName) {
+        StringBuilder name = new StringBuilder();
+        boolean wordStart = false;
+        for (char c : aspectName.toCharArray()) {
+            if (c == '-') {
+                wordStart = true;
+            } else {
+                name.append(wordStart ? Character.toUpperCase(c) : c);
+                wordStart = false;
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * @return name of the aspect guarded by the flag, turned back from the flag name
+     */
+    public static String aspectName(String flagName) {
+        return flagName.replaceAll("([A-Z])", "-$1").toLowerCase();
+    }
+}
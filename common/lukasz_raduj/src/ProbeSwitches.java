@@ -0,0 +1,119 @@
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+
+/**
+ * Turns probes of classes instrumented with the {@value InstrumentationEngine#SWITCHABLE_OPTION} option
+ * on and off while the program runs. Every probe is guarded by the static flag of its aspect, so a disabled probe
+ * costs a load and a branch the JIT predicts as never taken, or nothing where the load is hoisted out of a loop.
+ * <p>
+ * Flags are named after the aspects in camel case, e.g. invokeAround, and are switched from code, through the
+ * {@value #OBJECT_NAME} MXBean, or at start with {@value #DISABLED_PROPERTY} set to a comma separated list of
+ * aspect names or {@code all}.
+ */
+public class ProbeSwitches {
+    public static final String OBJECT_NAME = "lukasz_raduj:type=ProbeSwitches";
+    public static final String DISABLED_PROPERTY = "probes.disabled";
+
+    private static final String ALL_ASPECTS = "all";
+
+    //not volatile, so the JIT may hoist a check out of a loop, such a loop sees switching once it is left
+    public static boolean invokeAround = true;
+    public static boolean getfieldDescription = true;
+    public static boolean instructionCount = true;
+    public static boolean methodTiming = true;
+    public static boolean callEdges = true;
+    public static boolean allocationSites = true;
+    public static boolean monitorContention = true;
+
+    static {
+        List<String> disabled = Arrays.asList(System.getProperty(DISABLED_PROPERTY, "").split(","));
+        for (String aspect : aspects()) {
+            if (disabled.contains(aspect) || disabled.contains(ALL_ASPECTS)) {
+                disable(aspect);
+            }
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(new Control(), new ObjectName(OBJECT_NAME));
+        } catch (Exception ex) {
+            System.err.printf("Cannot register probe switches! Reason: %s%n", ex);
+        }
+    }
+
+    private ProbeSwitches() {
+    }
+
+    public static void enable(String aspect) {
+        setFlag(aspect, true);
+    }
+
+    public static void disable(String aspect) {
+        setFlag(aspect, false);
+    }
+
+    public static boolean isEnabled(String aspect) {
+        try {
+            return flag(aspect).getBoolean(null);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static void setFlag(String aspect, boolean enabled) {
+        try {
+            flag(aspect).setBoolean(null, enabled);
+        } catch (IllegalAccessException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    private static Field flag(String aspect) {
+        try {
+            return ProbeSwitches.class.getField(ProbeSwitchNames.flagName(aspect));
+        } catch (NoSuchFieldException ex) {
+            throw new IllegalArgumentException("No switch for aspect: " + aspect);
+        }
+    }
+
+    /**
+     * Names of the aspects with a flag, turned back from the flag names.
+     */
+    private static List<String> aspects() {
+        List<String> aspects = new ArrayList<String>();
+        for (Field field : ProbeSwitches.class.getFields()) {
+            if (field.getType() == boolean.class && Modifier.isStatic(field.getModifiers())) {
+                aspects.add(ProbeSwitchNames.aspectName(field.getName()));
+            }
+        }
+        return aspects;
+    }
+
+    private static final class Control implements ProbeSwitchesMXBean {
+        @Override
+        public Map<String, Boolean> getSwitches() {
+            Map<String, Boolean> switches = new TreeMap<String, Boolean>();
+            for (String aspect : aspects()) {
+                switches.put(aspect, isEnabled(aspect));
+            }
+            return switches;
+        }
+
+        @Override
+        public void enable(String aspect) {
+            ProbeSwitches.enable(aspect);
+        }
+
+        @Override
+        public void disable(String aspect) {
+            ProbeSwitches.disable(aspect);
+        }
+    }
+}
@@ -0,0 +1,16 @@
+import java.util.Map;
+
+
+/**
+ * Live control of {@link ProbeSwitches}, registered as {@value ProbeSwitches#OBJECT_NAME}.
+ */
+public interface ProbeSwitchesMXBean {
+    /**
+     * @return whether probes of an aspect run, by aspect name
+     */
+    Map<String, Boolean> getSwitches();
+
+    void enable(String aspect);
+
+    void disable(String aspect);
+}
@@ -0,0 +1,45 @@
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Descriptions of the probe sites instrumented classes register with the runtime class of an aspect through
+ * {@link ClassSiteRegistration}, every description a line of columns separated by tabs. Registration happens
+ * in static initializers of any thread, so all access is synchronized.
+ */
+public class SiteDescriptions {
+    private final List<String[]> sites = new ArrayList<String[]>();
+
+    /**
+     * @return id of the first of the reserved sites
+     */
+    public synchronized int reserve(int count) {
+        int firstSite = sites.size();
+        for (int i = 0; i < count; i++) {
+            sites.add(null);
+        }
+        return firstSite;
+    }
+
+    /**
+     * @param descriptions descriptions of consecutive sites from the first one, separated by new lines
+     */
+    public synchronized void describe(int firstSite, String descriptions) {
+        int site = firstSite;
+        for (String description : descriptions.split("\n")) {
+            sites.set(site++, description.split("\t"));
+        }
+    }
+
+    public synchronized int size() {
+        return sites.size();
+    }
+
+    /**
+     * @return the column of the site, null while the site is reserved but not described yet
+     */
+    public synchronized String get(int site, int column) {
+        String[] columns = sites.get(site);
+        return columns != null ? columns[column] : null;
+    }
+}
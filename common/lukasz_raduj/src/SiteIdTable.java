@@ -0,0 +1,96 @@
+import org.apache.bcel.classfile.Method;
+import org.apache.bcel.generic.*;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Gives every probe site of a class an int id and keeps the site metadata in a sidecar table
+ * ({@code ClassName.sites}), so probes pass the id instead of pushing a String constant.
+ * <p>
+ * Ids are local to the class. When the class is initialized it registers itself in {@link EventLog},
+ * gets a base id and keeps it in a synthetic static field, probes add their local id to that base.
+ * <p>
+ * Each line of the table is: local id, method, bytecode offset, detail and text, separated by tabs.
+ * The table is read back by {@link EventLogDecoder}, which has to run without BCEL.
+ */
+public class SiteIdTable {
+    public static final String FILE_SUFFIX = ".sites";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String BASE_FIELD_NAME = "eventSiteBase$";
+
+    private final ClassGen classGen;
+    private final List<String> sites = new ArrayList<String>();
+
+    public SiteIdTable(ClassGen classGen) {
+        this.classGen = classGen;
+    }
+
+    /**
+     * @param method method containing the site
+     * @param offset bytecode offset of the instrumented instruction in the original method
+     * @param detail what the probe looks at, e.g. invoked method or accessed field
+     * @param text   text printed for events of this site
+     * @return local id of the site
+     */
+    public int addSite(Method method, int offset, String detail, String text) {
+        sites.add(String.format("%d\t%s%s\t%d\t%s\t%s", sites.size(), method.getName(), method.getSignature(),
+                offset, escape(detail), escape(text)));
+        return sites.size() - 1;
+    }
+
+    public boolean isEmpty() {
+        return sites.isEmpty();
+    }
+
+    public InstructionList pushSiteId(int localId) {
+        ConstantPoolGen constantPoolGen = classGen.getConstantPool();
+        int baseField = constantPoolGen.addFieldref(classGen.getClassName(), BASE_FIELD_NAME, "I");
+
+        InstructionList instructions = new InstructionList();
+        instructions.append(new GETSTATIC(baseField));
+        instructions.append(new PUSH(constantPoolGen, localId));
+        instructions.append(InstructionConstants.IADD);
+        return instructions;
+    }
+
+    /**
+     * Adds the base id field and its initialization at the very beginning of the static initializer.
+     * Has to be called once all sites are added.
+     */
+    public void injectClassRegistration() {
+        ConstantPoolGen constantPoolGen = classGen.getConstantPool();
+        ClassInitializers.addSyntheticField(classGen, Type.INT, BASE_FIELD_NAME);
+
+        InstructionList registration = new InstructionList();
+        registration.append(new PUSH(constantPoolGen, classGen.getClassName()));
+        registration.append(new PUSH(constantPoolGen, sites.size()));
+        registration.append(new INVOKESTATIC(constantPoolGen.addMethodref("EventLog", "registerClass", "(Ljava/lang/String;I)I")));
+        registration.append(new PUTSTATIC(constantPoolGen.addFieldref(classGen.getClassName(), BASE_FIELD_NAME, "I")));
+        ClassInitializers.prepend(classGen, registration);
+    }
+
+    public void write(OutputStream output) throws IOException {
+        Writer writer = new OutputStreamWriter(output, UTF_8);
+        writer.write("# " + classGen.getClassName() + "\n");
+        for (String site : sites) {
+            writer.write(site);
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        write(bytes);
+        return bytes.toByteArray();
+    }
+
+    private static String escape(String text) {
+        return text.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+}
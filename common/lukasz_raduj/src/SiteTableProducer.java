@@ -0,0 +1,10 @@
+/**
+ * Transformer which describes probe sites of the last transformed class in a {@link SiteIdTable}.
+ */
+public interface SiteTableProducer {
+
+    /**
+     * @return table of the last transformed class, or null when it has no sites described this way
+     */
+    SiteIdTable getSiteTable();
+}
@@ -0,0 +1,143 @@
+import java.io.File;
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Runs a {@link BytecodeTransformer} on classes while they are loaded, so nothing has to be rewritten on disk.
+ * <p>
+ * Usage: {@code java -javaagent:transform-agent.jar[=option;option...] ...} with options:
+ * <ul>
+ * <li>{@code include=a.b.,c.} - instrument only classes from these packages (everything by default)</li>
+ * <li>{@code exclude=a.b.c.} - never instrument classes from these packages</li>
+ * <li>{@code transformer=Transform} - class of the transformer to use</li>
+ * <li>{@code options=-a,-b} - options passed to the transformer, as if given in the command line</li>
+ * <li>{@code cache=dir} - keep transformed classes in this directory and reuse them on the next start</li>
+ * </ul>
+ */
+public class TransformAgent implements ClassFileTransformer {
+    private static final String[] ALWAYS_EXCLUDED = {"java/", "javax/", "sun/", "com/sun/", "jdk/", "org/apache/bcel/"};
+
+    private final List<String> includedPrefixes = new ArrayList<String>();
+    private final List<String> excludedPrefixes = new ArrayList<String>();
+    private final URL agentLocation;
+    private final ThreadLocal<BytecodeTransformer> transformers;
+    private final TransformCache cache;
+
+    public static void premain(String agentArgs, Instrumentation instrumentation) throws Exception {
+        instrumentation.addTransformer(new TransformAgent(agentArgs));
+    }
+
+    public TransformAgent(String agentArgs) throws ClassNotFoundException, NoSuchMethodException, IOException {
+        String transformerClassName = BytecodeTransformers.DEFAULT_TRANSFORMER;
+        String[] transformerOptions = new String[0];
+        File cacheDirectory = null;
+
+        for (String excluded : ALWAYS_EXCLUDED) {
+            excludedPrefixes.add(excluded);
+        }
+
+        if (agentArgs != null) {
+            for (String option : agentArgs.split(";")) {
+                String[] keyAndValue = option.split("=", 2);
+                if (keyAndValue.length < 2) {
+                    throw new IllegalArgumentException("Expected key=value, got: " + option);
+                }
+
+                String key = keyAndValue[0].trim();
+                String value = keyAndValue[1].trim();
+                if ("include".equals(key)) {
+                    addPackagePrefixes(includedPrefixes, value);
+                } else if ("exclude".equals(key)) {
+                    addPackagePrefixes(excludedPrefixes, value);
+                } else if ("transformer".equals(key)) {
+                    transformerClassName = value;
+                } else if ("options".equals(key)) {
+                    transformerOptions = value.split(",");
+                } else if ("cache".equals(key)) {
+                    cacheDirectory = new File(value);
+                } else {
+                    throw new IllegalArgumentException("Unknown agent option: " + key);
+                }
+            }
+        }
+
+        CodeSource agentCodeSource = TransformAgent.class.getProtectionDomain().getCodeSource();
+        agentLocation = agentCodeSource != null ? agentCodeSource.getLocation() : null;
+        transformers = BytecodeTransformers.perThread(transformerClassName, transformerOptions);
+        cache = cacheDirectory != null
+                ? new TransformCache(cacheDirectory, TransformCache.fingerprint(transformers.get(), transformerOptions))
+                : null;
+    }
+
+    private static void addPackagePrefixes(List<String> prefixes, String packages) {
+        for (String packageName : packages.split(",")) {
+            if (!packageName.trim().isEmpty()) {
+                prefixes.add(packageName.trim().replace('.', '/'));
+            }
+        }
+    }
+
+    @Override
+    public byte[] transform(ClassLoader loader,
+                            String className,
+                            Class<?> classBeingRedefined,
+                            ProtectionDomain protectionDomain,
+                            byte[] classfileBuffer) {
+        if (loader == null || className == null || !shouldInstrument(className, protectionDomain)) {
+            return null;
+        }
+
+        try {
+            if (cache == null) {
+                return transformers.get().transform(classfileBuffer);
+            }
+
+            byte[] transformedBytes = cache.get(classfileBuffer);
+            if (transformedBytes == null) {
+                transformedBytes = transformers.get().transform(classfileBuffer);
+                cache.put(classfileBuffer, transformedBytes);
+            }
+            return transformedBytes;
+        } catch (Exception ex) {
+            System.err.printf("Cannot transform class %s! Reason: %s%n", className, ex);
+            return null;
+        }
+    }
+
+    private boolean shouldInstrument(String className, ProtectionDomain protectionDomain) {
+        //the agent and the runtime it injects calls to must never be instrumented
+        if (isLoadedFromAgent(protectionDomain)) {
+            return false;
+        }
+
+        for (String excluded : excludedPrefixes) {
+            if (className.startsWith(excluded)) {
+                return false;
+            }
+        }
+
+        if (includedPrefixes.isEmpty()) {
+            return true;
+        }
+        for (String included : includedPrefixes) {
+            if (className.startsWith(included)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isLoadedFromAgent(ProtectionDomain protectionDomain) {
+        if (agentLocation == null || protectionDomain == null || protectionDomain.getCodeSource() == null) {
+            return false;
+        }
+        return agentLocation.equals(protectionDomain.getCodeSource().getLocation());
+    }
+}
@@ -0,0 +1,220 @@
+import org.apache.bcel.generic.ClassGen;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+
+/**
+ * On-disk cache of transformed classes. Entries are keyed by a hash of the input class bytes together with
+ * a fingerprint of the transformer, its options and the class files of the tool, so changing any of them
+ * never reuses a stale entry.
+ * Safe to use from many threads and processes, entries are written to a temporary file and renamed.
+ */
+public class TransformCache {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String ENTRY_SUFFIX = ".class";
+
+    private final File directory;
+    private final byte[] fingerprint;
+
+    public TransformCache(File directory, String fingerprint) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + directory);
+        }
+        this.directory = directory;
+        this.fingerprint = fingerprint.getBytes(UTF_8);
+    }
+
+    /**
+     * Fingerprint covers the aspect, its options and the code the output depends on: every class file of the
+     * directories or jars the transformer, its aspects and BCEL are loaded from, so rebuilding the tool invalidates
+     * the cache as well. The methods of the hot methods file of an engine are covered too.
+     */
+    public static String fingerprint(BytecodeTransformer transformer, String[] options) throws IOException {
+        List<Class<?>> transformerClasses = new ArrayList<Class<?>>();
+        transformerClasses.add(transformer.getClass());
+        transformerClasses.add(ClassGen.class);
+        if (transformer instanceof InstrumentationEngine) {
+            for (InstrumentationAspect aspect : ((InstrumentationEngine) transformer).getAspects()) {
+                transformerClasses.add(aspect.getClass());
+            }
+        }
+
+        StringBuilder transformerHashes = new StringBuilder();
+        Set<String> hashedLocations = new HashSet<String>();
+        for (Class<?> transformerClass : transformerClasses) {
+            CodeSource codeSource = transformerClass.getProtectionDomain().getCodeSource();
+            File location = codeSource != null ? locationFile(codeSource.getLocation()) : null;
+            if (location == null) {
+                transformerHashes.append('@').append(toHex(classFileHash(transformerClass)));
+            } else if (hashedLocations.add(location.getPath())) {
+                transformerHashes.append('@').append(toHex(locationHash(location)));
+            }
+        }
+        //the file named by the options may change between runs
+        if (transformer instanceof InstrumentationEngine) {
+            Set<String> hotMethods = ((InstrumentationEngine) transformer).getMethodFilter().getHotMethods();
+            if (hotMethods != null) {
+                transformerHashes.append('#').append(toHex(sha1(hotMethods.toString().getBytes(UTF_8))));
+            }
+        }
+        return String.format("%s%s%s", transformer.getAspectName(), Arrays.toString(options), transformerHashes);
+    }
+
+    /**
+     * @return local directory or jar the classes are loaded from, or null if they come from elsewhere
+     */
+    private static File locationFile(URL location) {
+        if (location == null || !"file".equals(location.getProtocol())) {
+            return null;
+        }
+        try {
+            File file = new File(location.toURI());
+            return file.exists() ? file : null;
+        } catch (URISyntaxException ex) {
+            return null;
+        } catch (IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    private static byte[] classFileHash(Class<?> loadedClass) throws IOException {
+        InputStream classFile = loadedClass.getResourceAsStream(loadedClass.getSimpleName() + ENTRY_SUFFIX);
+        if (classFile == null) {
+            return new byte[0];
+        }
+        try {
+            return sha1(Streams.readFully(classFile));
+        } finally {
+            classFile.close();
+        }
+    }
+
+    /**
+     * Jars are hashed whole, directories by the paths and contents of their class files in a fixed order.
+     */
+    private static byte[] locationHash(File location) throws IOException {
+        MessageDigest digest = newSha1();
+        if (location.isFile()) {
+            digest.update(readFile(location));
+            return digest.digest();
+        }
+
+        List<String> classFiles = new ArrayList<String>();
+        collectClassFiles(location, "", classFiles);
+        Collections.sort(classFiles);
+        for (String classFile : classFiles) {
+            digest.update(classFile.getBytes(UTF_8));
+            digest.update(readFile(new File(location, classFile)));
+        }
+        return digest.digest();
+    }
+
+    private static void collectClassFiles(File directory, String prefix, List<String> classFiles) {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                collectClassFiles(file, prefix + file.getName() + "/", classFiles);
+            } else if (file.getName().endsWith(ENTRY_SUFFIX)) {
+                classFiles.add(prefix + file.getName());
+            }
+        }
+    }
+
+    public byte[] get(byte[] classBytes) throws IOException {
+        return read(entryFile(classBytes, ENTRY_SUFFIX));
+    }
+
+    public void put(byte[] classBytes, byte[] transformedBytes) throws IOException {
+        write(entryFile(classBytes, ENTRY_SUFFIX), transformedBytes);
+    }
+
+    /**
+     * @return sidecar site table stored along the transformed class, or null if there is none
+     */
+    public byte[] getSiteTable(byte[] classBytes) throws IOException {
+        return read(entryFile(classBytes, SiteIdTable.FILE_SUFFIX));
+    }
+
+    public void putSiteTable(byte[] classBytes, byte[] siteTable) throws IOException {
+        write(entryFile(classBytes, SiteIdTable.FILE_SUFFIX), siteTable);
+    }
+
+    private byte[] read(File entry) throws IOException {
+        if (!entry.isFile()) {
+            return null;
+        }
+        return readFile(entry);
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        InputStream input = new BufferedInputStream(new FileInputStream(file));
+        try {
+            return Streams.readFully(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private void write(File entry, byte[] bytes) throws IOException {
+        File entryDirectory = entry.getParentFile();
+        if (!entryDirectory.isDirectory() && !entryDirectory.mkdirs() && !entryDirectory.isDirectory()) {
+            throw new IOException("Cannot create cache directory " + entryDirectory);
+        }
+
+        File temporary = File.createTempFile(entry.getName(), ".tmp", entryDirectory);
+        OutputStream output = new BufferedOutputStream(new FileOutputStream(temporary));
+        try {
+            output.write(bytes);
+        } finally {
+            output.close();
+        }
+
+        //another thread may have stored the same entry meanwhile, its content is identical
+        if (!temporary.renameTo(entry)) {
+            temporary.delete();
+        }
+    }
+
+    private File entryFile(byte[] classBytes, String suffix) {
+        MessageDigest digest = newSha1();
+        digest.update(fingerprint);
+        digest.update(classBytes);
+        String hash = toHex(digest.digest());
+        return new File(new File(directory, hash.substring(0, 2)), hash.substring(2) + suffix);
+    }
+
+    private static byte[] sha1(byte[] bytes) {
+        return newSha1().digest(bytes);
+    }
+
+    private static MessageDigest newSha1() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-1 is not available", ex);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b & 0xff));
+        }
+        return hex.toString();
+    }
+}
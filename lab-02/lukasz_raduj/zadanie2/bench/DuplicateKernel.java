@@ -0,0 +1,8 @@
+public class DuplicateKernel implements OverheadKernel {
+    private final SomeClass someClass = new SomeClass();
+
+    @Override
+    public long run() {
+        return someClass.duplicate("kernel").length();
+    }
+}
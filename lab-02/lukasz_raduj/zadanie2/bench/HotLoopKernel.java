@@ -0,0 +1,22 @@
+public class HotLoopKernel implements OverheadKernel {
+    private final int[] values = new int[1024];
+
+    public HotLoopKernel() {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = i * 31;
+        }
+    }
+
+    @Override
+    public long run() {
+        long sum = 0;
+        for (int i = 0; i < values.length; i++) {
+            if ((values[i] & 1) == 0) {
+                sum += values[i];
+            } else {
+                sum -= i;
+            }
+        }
+        return sum;
+    }
+}
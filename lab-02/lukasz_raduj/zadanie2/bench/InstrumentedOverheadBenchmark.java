@@ -0,0 +1,112 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+
+/**
+ * Measures how much the instruction counting probes slow the instrumented code down: every kernel runs
+ * uninstrumented and then instrumented in each counting mode, in its own class loader, and the slowdown
+ * against the uninstrumented run is printed.
+ * <p>
+ * Usage: InstrumentedOverheadBenchmark [option set...], where an option set is a comma-separated list of
+ * {@link Transform} options and "-" stands for no options. Option sets choosing aspects with
+ * {@value InstrumentationEngine#ASPECTS_OPTION} are given to {@link InstrumentationEngine} instead. By default
+ * all counting modes and monitor contention are measured.
+ */
+public class InstrumentedOverheadBenchmark {
+    private static final String NO_OPTIONS = "-";
+    private static final String[] KERNELS = {
+            "PrintMeKernel", "DuplicateKernel", "HotLoopKernel", "NestedMonitorKernel"};
+    //classes loaded separately for every run, everything else, including the statistics, is shared
+    private static final Set<String> MEASURED_CLASSES = new HashSet<String>(Arrays.asList(
+            "Test", "TestBase", "SomeClass", "PrintMeKernel", "DuplicateKernel", "HotLoopKernel",
+            "NestedMonitorKernel"));
+
+    public static void main(String[] args) throws Exception {
+        String[] optionSets = args.length > 0 ? args : new String[]{NO_OPTIONS, "-opcodes", "-blocks",
+                InstrumentationEngine.ASPECTS_OPTION + MonitorContentionAspect.NAME};
+
+        BenchmarkRunner runner = new BenchmarkRunner();
+        runner.printHeader();
+        for (String kernel : KERNELS) {
+            for (int threads : runner.getThreadCounts()) {
+                double baseline = runner.run(kernel + " uninstrumented", threads, kernelFactory(kernel, null));
+                for (String optionSet : optionSets) {
+                    String[] options = optionSet.equals(NO_OPTIONS) ? new String[0] : optionSet.split(",");
+                    BytecodeTransformer transformer = optionSet.startsWith(InstrumentationEngine.ASPECTS_OPTION)
+                            ? new InstrumentationEngine(options) : new Transform(options);
+                    double instrumented = runner.run(kernel + " [" + optionSet + "]", threads,
+                            kernelFactory(kernel, transformer));
+                    System.out.printf("%-50s %8d %15.1fx%n", "    slowdown", threads, baseline / instrumented);
+                }
+            }
+        }
+    }
+
+    private static BenchmarkRunner.OperationFactory kernelFactory(String kernel, BytecodeTransformer transformer)
+            throws Exception {
+        final Class<? extends OverheadKernel> kernelClass = new KernelClassLoader(transformer)
+                .loadClass(kernel).asSubclass(OverheadKernel.class);
+
+        return new BenchmarkRunner.OperationFactory() {
+            @Override
+            public BenchmarkRunner.Operation newOperation() throws Exception {
+                final OverheadKernel instance = kernelClass.getDeclaredConstructor().newInstance();
+                return new BenchmarkRunner.Operation() {
+                    @Override
+                    public long run() {
+                        return instance.run();
+                    }
+                };
+            }
+        };
+    }
+
+    /**
+     * Defines the measured classes itself, instrumented if there is a transformer, and delegates the rest.
+     */
+    private static final class KernelClassLoader extends ClassLoader {
+        private final BytecodeTransformer transformer;
+
+        private KernelClassLoader(BytecodeTransformer transformer) {
+            super(InstrumentedOverheadBenchmark.class.getClassLoader());
+            this.transformer = transformer;
+        }
+
+        @Override
+        protected synchronized Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (!MEASURED_CLASSES.contains(name)) {
+                return super.loadClass(name, resolve);
+            }
+
+            Class<?> loadedClass = findLoadedClass(name);
+            if (loadedClass == null) {
+                byte[] classBytes = readClass(name);
+                loadedClass = defineClass(name, classBytes, 0, classBytes.length);
+            }
+            if (resolve) {
+                resolveClass(loadedClass);
+            }
+            return loadedClass;
+        }
+
+        private byte[] readClass(String name) throws ClassNotFoundException {
+            InputStream input = getParent().getResourceAsStream(name + ".class");
+            if (input == null) {
+                throw new ClassNotFoundException(name);
+            }
+            try {
+                try {
+                    byte[] classBytes = Streams.readFully(input);
+                    return transformer != null ? transformer.transform(classBytes) : classBytes;
+                } finally {
+                    input.close();
+                }
+            } catch (IOException ex) {
+                throw new ClassNotFoundException(name, ex);
+            }
+        }
+    }
+}
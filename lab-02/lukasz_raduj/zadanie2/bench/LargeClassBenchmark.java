@@ -0,0 +1,71 @@
+import org.apache.bcel.Constants;
+import org.apache.bcel.generic.*;
+
+
+/**
+ * Measures how long {@link Transform} takes on generated classes with many methods calling each other,
+ * which is where classifying invocations as internal or external dominates.
+ * <p>
+ * Usage: LargeClassBenchmark [number of methods...], by default 500, 1000, 2000 and 4000.
+ */
+public class LargeClassBenchmark {
+    private static final String CLASS_NAME = "Generated";
+    private static final int CALLS_PER_METHOD = 8;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 5;
+
+    public static void main(String[] args) throws Exception {
+        int[] methodCounts = {500, 1000, 2000, 4000};
+        if (args.length > 0) {
+            methodCounts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                methodCounts[i] = Integer.parseInt(args[i]);
+            }
+        }
+
+        System.out.printf("%10s %14s %14s%n", "methods", "ms per class", "invokes/ms");
+        for (int methodsCount : methodCounts) {
+            byte[] classBytes = generateClass(methodsCount);
+            for (int i = 0; i < WARMUP_ROUNDS; i++) {
+                new Transform().transform(classBytes);
+            }
+
+            long start = System.nanoTime();
+            for (int i = 0; i < MEASURED_ROUNDS; i++) {
+                new Transform().transform(classBytes);
+            }
+            double millis = (System.nanoTime() - start) / 1e6 / MEASURED_ROUNDS;
+            System.out.printf("%10d %14.1f %14.1f%n", methodsCount, millis, methodsCount * (CALLS_PER_METHOD + 1) / millis);
+        }
+    }
+
+    /**
+     * Every method calls a few methods of the same class and one external method.
+     * Names must not start with "m", the transformer leaves such methods alone.
+     */
+    private static byte[] generateClass(int methodsCount) {
+        ClassGen classGen = new ClassGen(CLASS_NAME, "java.lang.Object", CLASS_NAME + ".java",
+                Constants.ACC_PUBLIC | Constants.ACC_SUPER, null);
+        ConstantPoolGen constantPoolGen = classGen.getConstantPool();
+        int absMethod = constantPoolGen.addMethodref("java.lang.Math", "abs", "(I)I");
+
+        for (int i = 0; i < methodsCount; i++) {
+            InstructionList instructions = new InstructionList();
+            instructions.append(new PUSH(constantPoolGen, i));
+            for (int call = 1; call <= CALLS_PER_METHOD; call++) {
+                int callee = constantPoolGen.addMethodref(CLASS_NAME, "call" + (i + call) % methodsCount, "(I)I");
+                instructions.append(new INVOKESTATIC(callee));
+            }
+            instructions.append(new INVOKESTATIC(absMethod));
+            instructions.append(InstructionConstants.IRETURN);
+
+            MethodGen methodGen = new MethodGen(Constants.ACC_PUBLIC | Constants.ACC_STATIC, Type.INT,
+                    new Type[]{Type.INT}, new String[]{"value"}, "call" + i, CLASS_NAME, instructions, constantPoolGen);
+            methodGen.setMaxStack();
+            methodGen.setMaxLocals();
+            classGen.addMethod(methodGen.getMethod());
+            instructions.dispose();
+        }
+        return classGen.getJavaClass().getBytes();
+    }
+}
@@ -0,0 +1,20 @@
+public class NestedMonitorKernel implements OverheadKernel {
+    private final Object other = new Object();
+    private int value;
+
+    @Override
+    public long run() {
+        value = both(value);
+        return value;
+    }
+
+    /**
+     * Holds the monitor of another lock inside its own, monitor probes have to release the right one on return.
+     */
+    synchronized int both(int x) {
+        synchronized (other) {
+            x++;
+        }
+        return x;
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Work measured by {@link InstrumentedOverheadBenchmark}. Implementations are loaded once as they are
+ * and once instrumented, this interface is shared by both.
+ */
+public interface OverheadKernel {
+    long run();
+}
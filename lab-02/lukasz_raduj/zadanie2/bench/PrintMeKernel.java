@@ -0,0 +1,9 @@
+public class PrintMeKernel implements OverheadKernel {
+    private final Test test = new Test();
+
+    @Override
+    public long run() {
+        test.printMe(13);
+        return 13;
+    }
+}